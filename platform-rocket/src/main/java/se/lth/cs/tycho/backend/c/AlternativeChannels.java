@@ -7,10 +7,13 @@ import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.network.Network;
 import se.lth.cs.tycho.type.AlgebraicType;
 import se.lth.cs.tycho.type.AliasType;
+import se.lth.cs.tycho.type.ProductType;
+import se.lth.cs.tycho.type.SumType;
 import se.lth.cs.tycho.type.Type;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Module
@@ -23,6 +26,14 @@ public interface AlternativeChannels extends Channels {
 	}
 
 	default void channelListCodeForType(Type type, int[] size) {
+		channelListCode(type, size, slot -> String.format("%s = data;", slot));
+	}
+
+	/*
+	 * The channel lists, where store gives the statement that stores the token data in a slot of the ring. Bulk writes
+	 * go through the channel_copy_in of each channel.
+	 */
+	default void channelListCode(Type type, int[] size, Function<String, String> store) {
 		String tokenType = backend().code().type(type);
 		List<String> sizeStrings = Arrays.stream(size)
 				.mapToObj(this::sizeToString)
@@ -71,6 +82,9 @@ public interface AlternativeChannels extends Channels {
 		index = 0;
 		for (String bufferSize : bufferSizes) {
 			emitter().emit("	if (%s - (channel_list.channel_%d->write - channel_list.channel_%2$d->read) < tokens) {", bufferSize, index);
+			if (statistics()) {
+				emitter().emit("		channel_list.channel_%d->full_stalls++;", index);
+			}
 			emitter().emit("		return false;");
 			emitter().emit("	}");
 			index += 1;
@@ -85,7 +99,7 @@ public interface AlternativeChannels extends Channels {
 			emitter().emit("	{");
 			emitter().emit("		channel_%s_%s_mirror *chan_mirror = channel_list_mirror.channel_%d;", tokenType, sizeToString(s), index);
 			emitter().emit("		channel_%s_%s *chan = channel_list.channel_%d;", tokenType, sizeToString(s), index);
-			emitter().emit("		chan->buffer[chan_mirror->write %% %s] = data;", sizeToBufferSize(s));
+			emitter().emit("		%s", store.apply(String.format("chan->buffer[%s]", ringIndex("chan_mirror->write", sizeToBufferSize(s)))));
 			emitter().emit("		chan->write++;");
 			emitter().emit("		chan_mirror->write++;");
 			emitter().emit("	}");
@@ -100,104 +114,94 @@ public interface AlternativeChannels extends Channels {
 			emitter().emit("	{");
 			emitter().emit("		channel_%s_%s_mirror *chan_mirror = channel_list_mirror.channel_%d;", tokenType, sizeToString(s), index);
 			emitter().emit("		channel_%s_%s *chan = channel_list.channel_%d;", tokenType, sizeToString(s), index);
-			emitter().emit("		for (size_t i = 0; i < tokens; i++) {");
-			emitter().emit("			chan->buffer[chan_mirror->write %% %s] = data[i];", sizeToBufferSize(s));
-			emitter().emit("			chan->write++;");
-			emitter().emit("			chan_mirror->write++;");
-			emitter().emit("		}");
+			emitter().emit("		channel_copy_in_%s_%s(chan->buffer, chan_mirror->write, data, tokens);", tokenType, sizeToString(s));
+			emitter().emit("		chan->write += tokens;");
+			emitter().emit("		chan_mirror->write += tokens;");
 			emitter().emit("	}");
 			index += 1;
 		}
 		emitter().emit("}");
 		emitter().emit("");
 
-	}
-
-	default void channelListCodeForType(AlgebraicType type, int[] size) {
-		String tokenType = backend().code().type(type);
-		List<String> sizeStrings = Arrays.stream(size)
-				.mapToObj(this::sizeToString)
-				.collect(Collectors.toList());
-		List<String> bufferSizes = Arrays.stream(size)
-				.mapToObj(this::sizeToBufferSize)
-				.collect(Collectors.toList());
-
-		emitter().emit("typedef struct {");
-		int index = 0;
-		for (String sizeString : sizeStrings) {
-			emitter().emit("	channel_%s_%s *channel_%d;", tokenType, sizeString, index);
-			index += 1;
-		}
-		emitter().emit("");
-		emitter().emit("} channel_list_%s_%s;", tokenType, String.join("_", sizeStrings));
-		emitter().emit("");
-
-		emitter().emit("static inline size_t channel_space_%s_%s(channel_list_%1$s_%2$s channel_list) {", tokenType, String.join("_", sizeStrings));
+		// Staged writes put tokens behind the ones that are not yet published and leave the counters alone
+		emitter().emit("static inline void channel_write_one_staged_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t staged, %1$s data) {", tokenType, String.join("_", sizeStrings));
 		index = 0;
-		emitter().emit("	size_t min = SIZE_MAX;");
-		for (String bufferSize : bufferSizes) {
+		for (int s : size) {
 			emitter().emit("	{");
-			emitter().emit("		size_t s = %s - (channel_list.channel_%d->write - channel_list.channel_%2$d->read);", bufferSize, index);
-			emitter().emit("		if (s < min) { min = s; }");
-			emitter().emit("	}");
-			index += 1;
-		}
-		emitter().emit("	return min;");
-		emitter().emit("}");
-		emitter().emit("");
-
-		emitter().emit("static inline _Bool channel_has_space_%s_%s(channel_list_%1$s_%2$s channel_list, size_t tokens) {", tokenType, String.join("_", sizeStrings));
-		index = 0;
-		for (String bufferSize : bufferSizes) {
-			emitter().emit("	if (%s - (channel_list.channel_%d->write - channel_list.channel_%2$d->read) < tokens) {", bufferSize, index);
-			emitter().emit("		return false;");
+			emitter().emit("		channel_%s_%s_mirror *chan_mirror = channel_list_mirror.channel_%d;", tokenType, sizeToString(s), index);
+			emitter().emit("		channel_%s_%s *chan = channel_list.channel_%d;", tokenType, sizeToString(s), index);
+			emitter().emit("		%s", store.apply(String.format("chan->buffer[%s]", ringIndex("chan_mirror->write + staged", sizeToBufferSize(s)))));
 			emitter().emit("	}");
 			index += 1;
 		}
-		emitter().emit("	return true;");
 		emitter().emit("}");
 		emitter().emit("");
 
-		emitter().emit("static inline void channel_write_one_%s_%s(channel_list_%1$s_%2$s channel_list, %1$s data) {", tokenType, String.join("_", sizeStrings));
+		emitter().emit("static inline void channel_write_staged_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t staged, %1$s *data, size_t tokens) {", tokenType, String.join("_", sizeStrings));
 		index = 0;
 		for (int s : size) {
 			emitter().emit("	{");
+			emitter().emit("		channel_%s_%s_mirror *chan_mirror = channel_list_mirror.channel_%d;", tokenType, sizeToString(s), index);
 			emitter().emit("		channel_%s_%s *chan = channel_list.channel_%d;", tokenType, sizeToString(s), index);
-			emitter().emit("		chan->buffer[chan->write %% %s] = calloc(1, size_%s(data));", sizeToBufferSize(s), tokenType);
-			emitter().emit("		write_%s(data, chan->buffer[chan->write %% %s]);", tokenType, sizeToBufferSize(s));
-			emitter().emit("		chan->write++;");
+			emitter().emit("		channel_copy_in_%s_%s(chan->buffer, chan_mirror->write + staged, data, tokens);", tokenType, sizeToString(s));
 			emitter().emit("	}");
 			index += 1;
 		}
 		emitter().emit("}");
 		emitter().emit("");
 
-		emitter().emit("static inline void channel_write_%s_%s(channel_list_%1$s_%2$s channel_list, %1$s *data, size_t tokens) {", tokenType, String.join("_", sizeStrings));
+		// Must follow a fence that orders the staged tokens before the counters
+		emitter().emit("static inline void channel_publish_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t tokens) {", tokenType, String.join("_", sizeStrings));
 		index = 0;
 		for (int s : size) {
-			emitter().emit("	{");
-			emitter().emit("		channel_%s_%s *chan = channel_list.channel_%d;", tokenType, sizeToString(s), index);
-			emitter().emit("		for (size_t i = 0; i < tokens; i++) {");
-			emitter().emit("			chan->buffer[chan->write %% %s] = calloc(1, size_%s(data[i]));", sizeToBufferSize(s), tokenType);
-			emitter().emit("			write_%s(data[i], chan->buffer[chan->write %% %s]);", tokenType, sizeToBufferSize(s));
-			emitter().emit("			chan->write++;");
-			emitter().emit("		}");
-			emitter().emit("	}");
+			emitter().emit("	channel_list.channel_%d->write += tokens;", index);
+			emitter().emit("	channel_list_mirror.channel_%d->write += tokens;", index);
 			index += 1;
 		}
 		emitter().emit("}");
 		emitter().emit("");
 	}
 
+	/*
+	 * Tokens in inline slots are copied into the slot, other algebraic tokens are serialized to the heap and the slot
+	 * holds the pointer.
+	 */
+	default void channelListCodeForType(AlgebraicType type, int[] size) {
+		String tokenType = backend().code().type(type);
+		if (isInlineSlot(type)) {
+			channelListCode(type, size, slot -> String.format("%s = *data;", slot));
+		} else {
+			channelListCode(type, size, slot -> String.format("%s = calloc(1, size_%s(data)); write_%2$s(data, %1$s);", slot, tokenType));
+		}
+	}
+
 	default void channelListCodeForType(AliasType type, int[] size) {
 		channelListCodeForType(type.getConcreteType(), size);
 	}
 
+	/*
+	 * The position of a counter in a ring buffer. Counters are unsigned and only grow, so a power of two capacity can
+	 * be indexed with a mask instead of a division.
+	 */
+	default String ringIndex(String counter, String bufferSize) {
+		if (pow2()) {
+			return String.format("(%s) & (%s - 1)", counter, bufferSize);
+		} else {
+			return String.format("(%s) %% %s", counter, bufferSize);
+		}
+	}
+
 	default String sizeToBufferSize(int size) {
 		return size == 0 ? "BUFFER_SIZE" : Integer.toString(size);
 	}
 
 	default String sourceEndTypeSize(Connection.End source) {
+		if (isBroadcast(source)) {
+			return broadcastTypeSize(source);
+		}
+		if (isHardwareFifo(source)) {
+			return hardwareFifoTypeSize(outgoing(source).get(0));
+		}
 		Network network = backend().task().getNetwork();
 		List<Connection> connections = network.getConnections().stream()
 				.filter(conn -> conn.getSource().equals(source))
@@ -214,11 +218,41 @@ public interface AlternativeChannels extends Channels {
 		Connection connection = network.getConnections().stream()
 				.filter(conn -> conn.getTarget().equals(target))
 				.findFirst().get();
+		if (isBroadcast(connection.getSource())) {
+			return broadcastTypeSize(connection.getSource());
+		}
+		if (isHardwareFifo(connection)) {
+			return hardwareFifoTypeSize(connection);
+		}
 		Type type = backend().types().connectionType(network, connection);
 		String size = sizeToString(connectionBufferSize(connection));
 		return backend().code().type(type) + "_" + size;
 	}
 
+	/*
+	 * Both ends of a broadcast channel use the type of the broadcast buffer, which is named by its number of
+	 * readers and its size.
+	 */
+	default String broadcastTypeSize(Connection.End source) {
+		Type type = backend().types().connectionType(backend().task().getNetwork(), outgoing(source).get(0));
+		return backend().code().type(type) + "_" + broadcastSizeString(outgoing(source).size(), broadcastBufferSize(source));
+	}
+
+	default String broadcastSizeString(int readers, int size) {
+		return "B" + readers + "_" + sizeToString(size);
+	}
+
+	/*
+	 * Every hardware fifo has functions of its own, since the number of its queue is part of the instructions.
+	 */
+	default String hardwareFifoTypeSize(Connection connection) {
+		return backend().code().type(alignedConnectionTypes(connection)) + "_" + hardwareFifoSizeString(hardwareFifoNumber(connection));
+	}
+
+	default String hardwareFifoSizeString(int fifo) {
+		return "F" + fifo;
+	}
+
 
 	default String sizeToString(int size) {
 		if (size == 0) {
@@ -230,50 +264,210 @@ public interface AlternativeChannels extends Channels {
 		}
 	}
 
+	default void channelHasData(String tokenType, String sizeString, String bufferSize) {
+		emitter().emit("static inline _Bool channel_has_data_%s_%s(channel_%1$s_%2$s *channel, size_t tokens) {", tokenType, sizeString);
+		if (statistics()) {
+			emitter().emit("	size_t occupancy = channel->write - channel->read;");
+			emitter().emit("	channel_stats_sample(&channel->stats, occupancy, %s, tokens);", bufferSize);
+			emitter().emit("	return occupancy >= tokens;");
+		} else {
+			emitter().emit("	return channel->write - channel->read >= tokens;");
+		}
+		emitter().emit("}");
+	}
+
 	default void channelCodeForType(Type type, int size) {
 		String tokenType = backend().code().type(type);
 		String sizeString = sizeToString(size);
 		String bufferSize = sizeToBufferSize(size);
 
+		// Each side writes its own counter in both structs. The counters and the buffer are on separate cache blocks,
+		// so a block is only ever written by one of the cores.
 		emitter().emit("// CHANNEL %s (at the receiver)", type);
 		emitter().emit("typedef struct {");
-		emitter().emit("	size_t read;");
-		emitter().emit("	size_t write;");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
 		//emitter().emit("	%s *buffer;", tokenType);
-		emitter().emit("	%s buffer[%s];", tokenType, bufferSize);
+		emitter().emit("	%s buffer[%s] CACHE_ALIGNED;", tokenType, bufferSize);
+		if (statistics()) {
+			emitter().emit("	channel_stats stats CACHE_ALIGNED;");
+		}
 		emitter().emit("} channel_%s_%s;", tokenType, sizeString);
 		emitter().emit("");
 
 		emitter().emit("// Mirror channel (at the sender side)");
 		emitter().emit("typedef struct {");
-		emitter().emit("	size_t read;");
-		emitter().emit("	size_t write;");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
 		emitter().emit("	%s *buffer;", tokenType);
+		if (statistics()) {
+			emitter().emit("	size_t full_stalls CACHE_ALIGNED;");
+		}
 		emitter().emit("} channel_%s_%s_mirror;", tokenType, sizeString);
 		emitter().emit("");
 		emitter().emit("");
 
-		emitter().emit("static inline _Bool channel_has_data_%s_%s(channel_%1$s_%2$s *channel, size_t tokens) {", tokenType, sizeString);
-		emitter().emit("	return channel->write - channel->read >= tokens;");
+		channelHasData(tokenType, sizeString, bufferSize);
+		emitter().emit("");
+
+		emitter().emit("static inline %s channel_peek_first_%1$s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
+		emitter().emit("	return channel->buffer[%s];", ringIndex("channel->read", bufferSize));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Copies tokens out of the ring in at most two contiguous segments");
+		emitter().emit("static inline void channel_copy_out_%s_%s(const %1$s *buffer, size_t from, size_t tokens, %1$s *result) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("from", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	memcpy(result, &buffer[start], first * sizeof(%s));", tokenType);
+		emitter().emit("	memcpy(result + first, buffer, (tokens - first) * sizeof(%s));", tokenType);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Copies tokens into the ring in at most two contiguous segments");
+		emitter().emit("static inline void channel_copy_in_%s_%s(%1$s *buffer, size_t to, const %1$s *data, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("to", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	memcpy(&buffer[start], data, first * sizeof(%s));", tokenType);
+		emitter().emit("	memcpy(buffer, data + first, (tokens - first) * sizeof(%s));", tokenType);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_peek_%s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType, sizeString);
+		emitter().emit("	channel_copy_out_%s_%s(channel->buffer, channel->read + offset, tokens, result);", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Points into the buffer if the tokens are contiguous, otherwise copies them to the scratch list");
+		emitter().emit("static inline const %s *channel_window_%1$s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *scratch) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("channel->read + offset", bufferSize));
+		emitter().emit("	if (start + tokens <= %s) {", bufferSize);
+		emitter().emit("		return &channel->buffer[start];");
+		emitter().emit("	}");
+		emitter().emit("	channel_copy_out_%s_%s(channel->buffer, channel->read + offset, tokens, scratch);", tokenType, sizeString);
+		emitter().emit("	return scratch;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror, size_t tokens) {", tokenType, sizeString, tokenType, sizeString);
+		emitter().emit("	channel->read        += tokens;");
+		emitter().emit("	channel_mirror->read += tokens;");
+		if (statistics()) {
+			emitter().emit("	channel->stats.tokens += tokens;");
+		}
 		emitter().emit("}");
 		emitter().emit("");
 
+		emitter().emit("static void channel_create_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror) {", tokenType, sizeString);
+		emitter().emit("	channel->read          = 0;");
+		emitter().emit("	channel->write         = 0;");
+		emitter().emit("	channel_mirror->read   = 0;");
+		emitter().emit("	channel_mirror->write  = 0;");
+		emitter().emit("	channel_mirror->buffer = &channel->buffer[0];");
+		if (statistics()) {
+			emitter().emit("	memset(&channel->stats, 0, sizeof(channel_stats));");
+			emitter().emit("	channel_mirror->full_stalls = 0;");
+		}
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void channel_destroy_%s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * Algebraic types whose fields are all scalars have a bounded size, and their tokens are stored by value in fixed
+	 * slots of the channel instead of being serialized to the heap. Readers get a pointer to the slot, which stays
+	 * valid until the token is consumed.
+	 */
+	default boolean isInlineSlot(Type type) {
+		return false;
+	}
+
+	default boolean isInlineSlot(AliasType type) {
+		return isInlineSlot(type.getConcreteType());
+	}
+
+	default boolean isInlineSlot(ProductType type) {
+		return type.getFields().stream().allMatch(field -> isScalarField(field.getType()));
+	}
+
+	default boolean isInlineSlot(SumType type) {
+		return type.getVariants().stream()
+				.allMatch(variant -> variant.getFields().stream().allMatch(field -> isScalarField(field.getType())));
+	}
+
+	default boolean isScalarField(Type type) {
+		if (type instanceof AliasType) {
+			return isScalarField(((AliasType) type).getConcreteType());
+		}
+		return backend().code().isScalar(type);
+	}
+
+	default void inlineSlotChannelCode(AlgebraicType type, int size) {
+		String tokenType = backend().code().type(type);
+		String slotType = backend().algebraic().utils().internalName(type);
+		String sizeString = sizeToString(size);
+		String bufferSize = sizeToBufferSize(size);
+
+		emitter().emit("// CHANNEL %s (at the receiver, tokens in inline slots)", type);
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
+		emitter().emit("	%s buffer[%s] CACHE_ALIGNED;", slotType, bufferSize);
+		if (statistics()) {
+			emitter().emit("	channel_stats stats CACHE_ALIGNED;");
+		}
+		emitter().emit("} channel_%s_%s;", tokenType, sizeString);
+		emitter().emit("");
+
+		emitter().emit("// Mirror channel (at the sender side)");
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
+		emitter().emit("	%s *buffer;", slotType);
+		if (statistics()) {
+			emitter().emit("	size_t full_stalls CACHE_ALIGNED;");
+		}
+		emitter().emit("} channel_%s_%s_mirror;", tokenType, sizeString);
+		emitter().emit("");
+		emitter().emit("");
+
+		channelHasData(tokenType, sizeString, bufferSize);
+		emitter().emit("");
+
 		emitter().emit("static inline %s channel_peek_first_%1$s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
-		emitter().emit("	return channel->buffer[channel->read %% %s];", bufferSize);
+		emitter().emit("	return &channel->buffer[%s];", ringIndex("channel->read", bufferSize));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_copy_in_%s_%s(%s *buffer, size_t to, const %1$s *data, size_t tokens) {", tokenType, sizeString, slotType);
+		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
+		emitter().emit("		buffer[%s] = *data[i];", ringIndex("to + i", bufferSize));
+		emitter().emit("	}");
 		emitter().emit("}");
 		emitter().emit("");
 
 		emitter().emit("static inline void channel_peek_%s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType, sizeString);
-		emitter().emit("	%s *res = result;", tokenType);
 		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
-		emitter().emit("		res[i] = channel->buffer[(channel->read+i+offset) %% %s];", bufferSize);
+		emitter().emit("		result[i] = &channel->buffer[%s];", ringIndex("channel->read + offset + i", bufferSize));
 		emitter().emit("	}");
 		emitter().emit("}");
 		emitter().emit("");
 
-		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror, size_t tokens) {", tokenType, sizeString, tokenType, sizeString);
+		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror, size_t tokens) {", tokenType, sizeString);
 		emitter().emit("	channel->read        += tokens;");
 		emitter().emit("	channel_mirror->read += tokens;");
+		if (statistics()) {
+			emitter().emit("	channel->stats.tokens += tokens;");
+		}
 		emitter().emit("}");
 		emitter().emit("");
 
@@ -283,6 +477,10 @@ public interface AlternativeChannels extends Channels {
 		emitter().emit("	channel_mirror->read   = 0;");
 		emitter().emit("	channel_mirror->write  = 0;");
 		emitter().emit("	channel_mirror->buffer = &channel->buffer[0];");
+		if (statistics()) {
+			emitter().emit("	memset(&channel->stats, 0, sizeof(channel_stats));");
+			emitter().emit("	channel_mirror->full_stalls = 0;");
+		}
 		emitter().emit("}");
 		emitter().emit("");
 
@@ -292,49 +490,80 @@ public interface AlternativeChannels extends Channels {
 	}
 
 	default void channelCodeForType(AlgebraicType type, int size) {
+		if (isInlineSlot(type)) {
+			inlineSlotChannelCode(type, size);
+			return;
+		}
 		String tokenType = backend().code().type(type);
 		String sizeString = sizeToString(size);
 		String bufferSize = sizeToBufferSize(size);
 
-		emitter().emit("// CHANNEL %s", type);
+		emitter().emit("// CHANNEL %s (at the receiver, tokens serialized to the heap)", type);
 		emitter().emit("typedef struct {");
-		emitter().emit("	size_t read;");
-		emitter().emit("	size_t write;");
-		emitter().emit("	char *buffer[%s];", bufferSize);
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
+		emitter().emit("	char *buffer[%s] CACHE_ALIGNED;", bufferSize);
 		emitter().emit("} channel_%s_%s;", tokenType, sizeString);
 		emitter().emit("");
 
+		emitter().emit("// Mirror channel (at the sender side)");
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
+		emitter().emit("	char **buffer;");
+		if (statistics()) {
+			emitter().emit("	size_t full_stalls CACHE_ALIGNED;");
+		}
+		emitter().emit("} channel_%s_%s_mirror;", tokenType, sizeString);
+		emitter().emit("");
+		emitter().emit("");
+
 		emitter().emit("static inline _Bool channel_has_data_%s_%s(channel_%1$s_%2$s *channel, size_t tokens) {", tokenType, sizeString);
 		emitter().emit("	return channel->write - channel->read >= tokens;");
 		emitter().emit("}");
 		emitter().emit("");
 
 		emitter().emit("static inline %s channel_peek_first_%1$s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
-		emitter().emit("	%s res = read_%1$s(channel->buffer[channel->read %% %2$s]);", tokenType, bufferSize);
+		emitter().emit("	%s res = read_%1$s(channel->buffer[%s]);", tokenType, ringIndex("channel->read", bufferSize));
 		emitter().emit("	return res;");
 		emitter().emit("}");
 		emitter().emit("");
 
+		emitter().emit("static inline void channel_copy_in_%s_%s(char **buffer, size_t to, const %1$s *data, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
+		emitter().emit("		buffer[%s] = calloc(1, size_%s(data[i]));", ringIndex("to + i", bufferSize), tokenType);
+		emitter().emit("		write_%s(data[i], buffer[%s]);", tokenType, ringIndex("to + i", bufferSize));
+		emitter().emit("	}");
+		emitter().emit("}");
+		emitter().emit("");
+
 		emitter().emit("static inline void channel_peek_%s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType, sizeString);
 		emitter().emit("	%s *res = result;", tokenType);
 		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
-		emitter().emit("		res[i] = read_%s(channel->buffer[(channel->read+i+offset) %% %s]);", tokenType, bufferSize);
+		emitter().emit("		res[i] = read_%s(channel->buffer[%s]);", tokenType, ringIndex("channel->read+i+offset", bufferSize));
 		emitter().emit("	}");
 		emitter().emit("}");
 		emitter().emit("");
 
-		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror, size_t tokens) {", tokenType, sizeString);
 		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
-		emitter().emit("		free(channel->buffer[(channel->read+i) %% %s]);", bufferSize);
-		emitter().emit("		channel->buffer[(channel->read+i) %% %s] = NULL;", bufferSize);
+		emitter().emit("		free(channel->buffer[%s]);", ringIndex("channel->read+i", bufferSize));
+		emitter().emit("		channel->buffer[%s] = NULL;", ringIndex("channel->read+i", bufferSize));
 		emitter().emit("	}");
-		emitter().emit("	channel->read += tokens;");
+		emitter().emit("	channel->read        += tokens;");
+		emitter().emit("	channel_mirror->read += tokens;");
 		emitter().emit("}");
 		emitter().emit("");
 
-		emitter().emit("static void channel_create_%s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
-		emitter().emit("	channel->read = 0;");
-		emitter().emit("	channel->write = 0;");
+		emitter().emit("static void channel_create_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror) {", tokenType, sizeString);
+		emitter().emit("	channel->read          = 0;");
+		emitter().emit("	channel->write         = 0;");
+		emitter().emit("	channel_mirror->read   = 0;");
+		emitter().emit("	channel_mirror->write  = 0;");
+		emitter().emit("	channel_mirror->buffer = &channel->buffer[0];");
+		if (statistics()) {
+			emitter().emit("	channel_mirror->full_stalls = 0;");
+		}
 		emitter().emit("	for (size_t i = 0; i < %s; ++i) {", bufferSize);
 		emitter().emit("		channel->buffer[i] = NULL;");
 		emitter().emit("	}");
@@ -354,25 +583,355 @@ public interface AlternativeChannels extends Channels {
 		channelCodeForType(type.getConcreteType(), size);
 	}
 
+	/*
+	 * A broadcast channel is a buffer with one write counter at the writer, and a read counter per reader on a
+	 * cache block of its own. Each reader also keeps its read counter next to itself, so that only consuming writes
+	 * to the buffer side. The reader is passed as the channel of the input port and its counter in the buffer as
+	 * the mirror.
+	 */
+	default void broadcastCodeForType(Type type, int readers, int size) {
+		String tokenType = backend().code().type(type);
+		String sizeString = broadcastSizeString(readers, size);
+		String bufferSize = sizeToBufferSize(size);
+
+		emitter().emit("// BROADCAST CHANNEL %s to %d readers", type, readers);
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("} channel_%s_%s_mirror;", tokenType, sizeString);
+		emitter().emit("");
+
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t write CACHE_ALIGNED;");
+		emitter().emit("	channel_%s_%s_mirror readers[%d];", tokenType, sizeString, readers);
+		emitter().emit("	%s buffer[%s] CACHE_ALIGNED;", tokenType, bufferSize);
+		emitter().emit("} broadcast_%s_%s;", tokenType, sizeString);
+		emitter().emit("");
+
+		emitter().emit("// Reader (at the receiver)");
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t read CACHE_ALIGNED;");
+		emitter().emit("	broadcast_%s_%s *broadcast;", tokenType, sizeString);
+		emitter().emit("} channel_%s_%s;", tokenType, sizeString);
+		emitter().emit("");
+
+		emitter().emit("typedef struct {");
+		emitter().emit("	broadcast_%s_%s *channel;", tokenType, sizeString);
+		emitter().emit("} channel_list_%s_%s;", tokenType, sizeString);
+		emitter().emit("");
+		emitter().emit("typedef channel_list_%s_%s channel_list_%1$s_%2$s_mirror;", tokenType, sizeString);
+		emitter().emit("");
+
+		emitter().emit("// Copies tokens out of the ring in at most two contiguous segments");
+		emitter().emit("static inline void channel_copy_out_%s_%s(const %1$s *buffer, size_t from, size_t tokens, %1$s *result) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("from", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	memcpy(result, &buffer[start], first * sizeof(%s));", tokenType);
+		emitter().emit("	memcpy(result + first, buffer, (tokens - first) * sizeof(%s));", tokenType);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Copies tokens into the ring in at most two contiguous segments");
+		emitter().emit("static inline void channel_copy_in_%s_%s(%1$s *buffer, size_t to, const %1$s *data, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("to", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	memcpy(&buffer[start], data, first * sizeof(%s));", tokenType);
+		emitter().emit("	memcpy(buffer, data + first, (tokens - first) * sizeof(%s));", tokenType);
+		emitter().emit("}");
+		emitter().emit("");
+
+		// The reader side
+		emitter().emit("static inline _Bool channel_has_data_%s_%s(channel_%1$s_%2$s *channel, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	return channel->broadcast->write - channel->read >= tokens;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline %s channel_peek_first_%1$s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
+		emitter().emit("	return channel->broadcast->buffer[%s];", ringIndex("channel->read", bufferSize));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_peek_%s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType, sizeString);
+		emitter().emit("	channel_copy_out_%s_%s(channel->broadcast->buffer, channel->read + offset, tokens, result);", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline const %s *channel_window_%1$s_%s(channel_%1$s_%2$s *channel, size_t offset, size_t tokens, %1$s *scratch) {", tokenType, sizeString);
+		emitter().emit("	size_t start = %s;", ringIndex("channel->read + offset", bufferSize));
+		emitter().emit("	if (start + tokens <= %s) {", bufferSize);
+		emitter().emit("		return &channel->broadcast->buffer[start];");
+		emitter().emit("	}");
+		emitter().emit("	channel_copy_out_%s_%s(channel->broadcast->buffer, channel->read + offset, tokens, scratch);", tokenType, sizeString);
+		emitter().emit("	return scratch;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_consume_%s_%s(channel_%1$s_%2$s *channel, channel_%1$s_%2$s_mirror *channel_mirror, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	channel->read        += tokens;");
+		emitter().emit("	channel_mirror->read += tokens;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void channel_create_%s_%s(channel_%1$s_%2$s *channel, broadcast_%1$s_%2$s *broadcast) {", tokenType, sizeString);
+		emitter().emit("	channel->read      = 0;");
+		emitter().emit("	channel->broadcast = broadcast;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void channel_destroy_%s_%s(channel_%1$s_%2$s *channel) {", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+
+		// The writer side
+		emitter().emit("static void broadcast_create_%s_%s(broadcast_%1$s_%2$s *broadcast) {", tokenType, sizeString);
+		emitter().emit("	broadcast->write = 0;");
+		emitter().emit("	for (int i = 0; i < %d; i++) {", readers);
+		emitter().emit("		broadcast->readers[i].read = 0;");
+		emitter().emit("	}");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline size_t channel_space_%s_%s(channel_list_%1$s_%2$s_mirror channel_list) {", tokenType, sizeString);
+		emitter().emit("	broadcast_%s_%s *broadcast = channel_list.channel;", tokenType, sizeString);
+		emitter().emit("	size_t slowest = broadcast->readers[0].read;");
+		emitter().emit("	for (int i = 1; i < %d; i++) {", readers);
+		emitter().emit("		if (broadcast->write - broadcast->readers[i].read > broadcast->write - slowest) {");
+		emitter().emit("			slowest = broadcast->readers[i].read;");
+		emitter().emit("		}");
+		emitter().emit("	}");
+		emitter().emit("	return %s - (broadcast->write - slowest);", bufferSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline _Bool channel_has_space_%s_%s(channel_list_%1$s_%2$s_mirror channel_list, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	return channel_space_%s_%s(channel_list) >= tokens;", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_one_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, %1$s data) {", tokenType, sizeString);
+		emitter().emit("	channel_list.channel->buffer[%s] = data;", ringIndex("channel_list.channel->write", bufferSize));
+		emitter().emit("	channel_list.channel->write++;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, %1$s *data, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	channel_copy_in_%s_%s(channel_list.channel->buffer, channel_list.channel->write, data, tokens);", tokenType, sizeString);
+		emitter().emit("	channel_list.channel->write += tokens;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_one_staged_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t staged, %1$s data) {", tokenType, sizeString);
+		emitter().emit("	channel_list.channel->buffer[%s] = data;", ringIndex("channel_list.channel->write + staged", bufferSize));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_staged_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t staged, %1$s *data, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	channel_copy_in_%s_%s(channel_list.channel->buffer, channel_list.channel->write + staged, data, tokens);", tokenType, sizeString);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Must follow a fence that orders the staged tokens before the counter");
+		emitter().emit("static inline void channel_publish_%s_%s(channel_list_%1$s_%2$s channel_list, channel_list_%1$s_%2$s_mirror channel_list_mirror, size_t tokens) {", tokenType, sizeString);
+		emitter().emit("	channel_list.channel->write += tokens;");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * The instructions of the hardware fifos. The second operand holds the number of the fifo in its low 16 bits and
+	 * the offset of a token in the bits above, functions return a value and commands do not.
+	 */
+	default void hardwareFifoInstructions() {
+		String[] opcodes = { "0b0001011", "0b0101011", "0b1011011", "0b1111011" };
+		emitter().emit("#define FIFO_STR1(x) #x");
+		emitter().emit("#define FIFO_STR(x) FIFO_STR1(x)");
+		emitter().emit("#define FIFO_WORD(xs, rd, rs1, rs2, funct) (%s | ((rd) << 7) | ((xs) << 12) | ((rs1) << 15) | ((rs2) << 20) | ((funct) << 25))", opcodes[FIFO_CUSTOM]);
+		emitter().emit("#define FIFO_OPERAND(fifo, offset) ((((uint64_t) (offset)) << 16) | (fifo))");
+		emitter().emit("#define FIFO_LEVEL   %d", FIFO_LEVEL);
+		emitter().emit("#define FIFO_PEEK    %d", FIFO_PEEK);
+		emitter().emit("#define FIFO_CONSUME %d", FIFO_CONSUME);
+		emitter().emit("#define FIFO_SPACE   %d", FIFO_SPACE);
+		emitter().emit("#define FIFO_WRITE   %d", FIFO_WRITE);
+		emitter().emit("#define FIFO_PUBLISH %d", FIFO_PUBLISH);
+		emitter().emit("");
+		emitter().emit("#define FIFO_FUNCTION(rd, operand, rs1, funct) {                                 \\");
+		emitter().emit("\tregister uint64_t rd_  asm (\"x10\");                                        \\");
+		emitter().emit("\tregister uint64_t rs1_ asm (\"x11\") = (uint64_t) (rs1);                     \\");
+		emitter().emit("\tregister uint64_t rs2_ asm (\"x12\") = (uint64_t) (operand);                 \\");
+		emitter().emit("\tasm volatile (\".word \" FIFO_STR(FIFO_WORD(0x7, 10, 11, 12, funct)) \"\\n\\t\" \\");
+		emitter().emit("\t\t: \"=r\" (rd_)                                                      \\");
+		emitter().emit("\t\t: [_rs1] \"r\" (rs1_), [_rs2] \"r\" (rs2_));                          \\");
+		emitter().emit("\trd = rd_;                                                           \\");
+		emitter().emit("}");
+		emitter().emit("");
+		emitter().emit("#define FIFO_COMMAND(operand, rs1, funct) {                                      \\");
+		emitter().emit("\tregister uint64_t rs1_ asm (\"x11\") = (uint64_t) (rs1);                     \\");
+		emitter().emit("\tregister uint64_t rs2_ asm (\"x12\") = (uint64_t) (operand);                 \\");
+		emitter().emit("\tasm volatile (\".word \" FIFO_STR(FIFO_WORD(0x3, 0, 11, 12, funct)) \"\\n\\t\"  \\");
+		emitter().emit("\t\t:                                                                   \\");
+		emitter().emit("\t\t: [_rs1] \"r\" (rs1_), [_rs2] \"r\" (rs2_));                          \\");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * A hardware fifo has the same functions as a channel in memory, but the tokens are written to and peeked from
+	 * the queue with custom instructions. The structs are placeholders, since the counters are in the queue.
+	 */
+	default void hardwareFifoCodeForType(Type type, int fifo, int depth) {
+		String tokenType = backend().code().type(type);
+		String typeSize = tokenType + "_" + hardwareFifoSizeString(fifo);
+		String operand = "FIFO_OPERAND(" + fifo + ", %s)";
+
+		emitter().emit("// HARDWARE FIFO %d of %s (a queue of %d tokens at the receiver)", fifo, type, depth);
+		emitter().emit("typedef struct {");
+		emitter().emit("	uint8_t unused;");
+		emitter().emit("} channel_%s;", typeSize);
+		emitter().emit("");
+		emitter().emit("typedef struct {");
+		emitter().emit("	uint8_t unused;");
+		emitter().emit("} channel_%s_mirror;", typeSize);
+		emitter().emit("");
+		emitter().emit("typedef struct {");
+		emitter().emit("	channel_%s *channel_0;", typeSize);
+		emitter().emit("} channel_list_%s;", typeSize);
+		emitter().emit("");
+		emitter().emit("typedef struct {");
+		emitter().emit("	channel_%s_mirror *channel_0;", typeSize);
+		emitter().emit("} channel_list_%s_mirror;", typeSize);
+		emitter().emit("");
+
+		emitter().emit("static inline uint64_t fifo_bits_%s(%s token) {", typeSize, tokenType);
+		emitter().emit("	union { %s token; uint64_t bits; } value;", tokenType);
+		emitter().emit("	value.bits = 0;");
+		emitter().emit("	value.token = token;");
+		emitter().emit("	return value.bits;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline %s fifo_token_%s(uint64_t bits) {", tokenType, typeSize);
+		emitter().emit("	union { %s token; uint64_t bits; } value;", tokenType);
+		emitter().emit("	value.bits = bits;");
+		emitter().emit("	return value.token;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline _Bool channel_has_data_%s(channel_%1$s *channel, size_t tokens) {", typeSize);
+		emitter().emit("	uint64_t level;");
+		emitter().emit("	FIFO_FUNCTION(level, %s, 0, FIFO_LEVEL);", String.format(operand, "0"));
+		emitter().emit("	return level >= tokens;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline %s channel_peek_first_%s(channel_%2$s *channel) {", tokenType, typeSize);
+		emitter().emit("	uint64_t bits;");
+		emitter().emit("	FIFO_FUNCTION(bits, %s, 0, FIFO_PEEK);", String.format(operand, "0"));
+		emitter().emit("	return fifo_token_%s(bits);", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_peek_%s(channel_%1$s *channel, size_t offset, size_t tokens, %s *result) {", typeSize, tokenType);
+		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
+		emitter().emit("		uint64_t bits;");
+		emitter().emit("		FIFO_FUNCTION(bits, %s, 0, FIFO_PEEK);", String.format(operand, "offset + i"));
+		emitter().emit("		result[i] = fifo_token_%s(bits);", typeSize);
+		emitter().emit("	}");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// The queue can not be pointed into, so the window is always a copy");
+		emitter().emit("static inline const %s *channel_window_%s(channel_%2$s *channel, size_t offset, size_t tokens, %1$s *scratch) {", tokenType, typeSize);
+		emitter().emit("	channel_peek_%s(channel, offset, tokens, scratch);", typeSize);
+		emitter().emit("	return scratch;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_consume_%s(channel_%1$s *channel, channel_%1$s_mirror *channel_mirror, size_t tokens) {", typeSize);
+		emitter().emit("	FIFO_COMMAND(%s, tokens, FIFO_CONSUME);", String.format(operand, "0"));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// The queue is empty when the tile comes out of reset");
+		emitter().emit("static void channel_create_%s(channel_%1$s *channel, channel_%1$s_mirror *channel_mirror) {", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void channel_destroy_%s(channel_%1$s *channel) {", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline size_t channel_space_%s(channel_list_%1$s_mirror channel_list) {", typeSize);
+		emitter().emit("	uint64_t space;");
+		emitter().emit("	FIFO_FUNCTION(space, %s, 0, FIFO_SPACE);", String.format(operand, "0"));
+		emitter().emit("	return space;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline _Bool channel_has_space_%s(channel_list_%1$s_mirror channel_list, size_t tokens) {", typeSize);
+		emitter().emit("	return channel_space_%s(channel_list) >= tokens;", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_one_staged_%s(channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror, size_t staged, %s data) {", typeSize, tokenType);
+		emitter().emit("	FIFO_COMMAND(%s, fifo_bits_%s(data), FIFO_WRITE);", String.format(operand, "staged"), typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_staged_%s(channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror, size_t staged, %s *data, size_t tokens) {", typeSize, tokenType);
+		emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
+		emitter().emit("		FIFO_COMMAND(%s, fifo_bits_%s(data[i]), FIFO_WRITE);", String.format(operand, "staged + i"), typeSize);
+		emitter().emit("	}");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_publish_%s(channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror, size_t tokens) {", typeSize);
+		emitter().emit("	FIFO_COMMAND(%s, tokens, FIFO_PUBLISH);", String.format(operand, "0"));
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_one_%s(channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror, %s data) {", typeSize, tokenType);
+		emitter().emit("	channel_write_one_staged_%s(channel_list, channel_list_mirror, 0, data);", typeSize);
+		emitter().emit("	channel_publish_%s(channel_list, channel_list_mirror, 1);", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void channel_write_%s(channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror, %s *data, size_t tokens) {", typeSize, tokenType);
+		emitter().emit("	channel_write_staged_%s(channel_list, channel_list_mirror, 0, data, tokens);", typeSize);
+		emitter().emit("	channel_publish_%s(channel_list, channel_list_mirror, tokens);", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * The input actor reads the stream straight into the free part of the ring of the first channel, in at most two
+	 * segments, and copies what it read into the rings of the other channels. The tokens are published to all
+	 * channels at once.
+	 */
 	default void inputActorCodeForType(Type type, int[] size) {
 		String tokenType = backend().code().type(type);
 		List<String> sizeStrings = Arrays.stream(size)
 				.mapToObj(this::sizeToString)
 				.collect(Collectors.toList());
-		List<String> bufferSizes = Arrays.stream(size)
-				.mapToObj(this::sizeToBufferSize)
-				.collect(Collectors.toList());
 		String typeSize = tokenType + "_" + String.join("_", sizeStrings);
+		String bufferSize = sizeToBufferSize(size[0]);
+		int batch = ioBatch();
 
 		emitter().emit("typedef struct {");
 		emitter().emit("	channel_list_%s channel_list;", typeSize);
+		emitter().emit("	channel_list_%s_mirror channel_list_mirror;", typeSize);
 		emitter().emit("	FILE *stream;");
 		emitter().emit("} input_actor_%s;", typeSize);
 		emitter().emit("");
 
-		emitter().emit("static input_actor_%s *input_actor_create_%1$s(FILE *stream, channel_list_%1$s channel_list) {", typeSize);
-		emitter().emit("    input_actor_%s *actor = malloc(sizeof(input_actor_%1$s));", typeSize);
+		emitter().emit("static input_actor_%s *input_actor_create_%1$s(FILE *stream, channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror) {", typeSize);
+		emitter().emit("    input_actor_%s *actor = calloc(1, sizeof(input_actor_%1$s));", typeSize);
 		emitter().emit("    actor->channel_list = channel_list;");
+		emitter().emit("    actor->channel_list_mirror = channel_list_mirror;");
 		emitter().emit("    actor->stream = stream;");
 		emitter().emit("    return actor;");
 		emitter().emit("}");
@@ -384,51 +943,254 @@ public interface AlternativeChannels extends Channels {
 		emitter().emit("");
 
 		emitter().emit("static _Bool input_actor_run_%s(input_actor_%1$s *actor) {", typeSize);
-		emitter().emit("	size_t space_before = channel_space_%s(actor->channel_list);", typeSize);
-		emitter().emit("	size_t space = space_before;");
-		emitter().emit("	while (space > 0 && !feof(actor->stream)) {");
-		emitter().emit("		%s v[1024];", tokenType);
-		emitter().emit("		size_t read = fread(&v, sizeof(%s), space > 1024 ? 1024 : space, actor->stream);", tokenType);
-		emitter().emit("		channel_write_%s(actor->channel_list, v, read);", typeSize);
-		emitter().emit("		space -= read;");
+		emitter().emit("	size_t space = channel_space_%s(actor->channel_list_mirror);", typeSize);
+		emitter().emit("	if (space > %d) {", batch);
+		emitter().emit("		space = %d;", batch);
+		emitter().emit("	}");
+		emitter().emit("	if (space == 0 || feof(actor->stream)) {");
+		emitter().emit("		return false;");
+		emitter().emit("	}");
+		emitter().emit("	channel_%s_%s *chan = actor->channel_list.channel_0;", tokenType, sizeStrings.get(0));
+		emitter().emit("	size_t start = %s;", ringIndex("actor->channel_list_mirror.channel_0->write", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > space) {");
+		emitter().emit("		first = space;");
 		emitter().emit("	}");
-		emitter().emit("	return space != space_before;");
+		emitter().emit("	size_t tokens = fread(&chan->buffer[start], sizeof(%s), first, actor->stream);", tokenType);
+		emitter().emit("	if (tokens == first && space > first) {");
+		emitter().emit("		tokens += fread(chan->buffer, sizeof(%s), space - first, actor->stream);", tokenType);
+		emitter().emit("	}");
+		emitter().emit("	if (tokens == 0) {");
+		emitter().emit("		return false;");
+		emitter().emit("	}");
+		if (size.length > 1) {
+			emitter().emit("	size_t head = tokens < first ? tokens : first;");
+		}
+		for (int index = 1; index < size.length; index++) {
+			emitter().emit("	{");
+			emitter().emit("		channel_%s_%s *copy = actor->channel_list.channel_%d;", tokenType, sizeStrings.get(index), index);
+			emitter().emit("		size_t write = actor->channel_list_mirror.channel_%d->write;", index);
+			emitter().emit("		channel_copy_in_%s_%s(copy->buffer, write, &chan->buffer[start], head);", tokenType, sizeStrings.get(index));
+			emitter().emit("		channel_copy_in_%s_%s(copy->buffer, write + head, chan->buffer, tokens - head);", tokenType, sizeStrings.get(index));
+			emitter().emit("	}");
+		}
+		emitter().emit("	__sync_synchronize();");
+		emitter().emit("	channel_publish_%s(actor->channel_list, actor->channel_list_mirror, tokens);", typeSize);
+		emitter().emit("	return true;");
 		emitter().emit("}");
 		emitter().emit("");
 	}
 
+	/*
+	 * The output actor writes the tokens of the channel to the stream straight from the ring, in at most two segments.
+	 * It waits until a batch of tokens has arrived, but not for more than half the channel, and not when the producer
+	 * has too little space left for the tokens that it writes in one firing, so that the producer is not held up.
+	 * Tokens that are left when the network terminates are written when the actor is destroyed.
+	 */
 	default void outputActorCodeForType(Type type, int size) {
 		String tokenType = backend().code().type(type);
 		String typeSize = tokenType + "_" + sizeToString(size);
+		String bufferSize = sizeToBufferSize(size);
+		int batch = outputBatch();
 
 		emitter().emit("typedef struct {");
 		emitter().emit("	channel_%s *channel;", typeSize);
+		emitter().emit("	channel_%s_mirror *channel_mirror;", typeSize);
 		emitter().emit("	FILE *stream;");
+		emitter().emit("	size_t batch;");
+		emitter().emit("	size_t window;");
 		emitter().emit("} output_actor_%s;", typeSize);
 		emitter().emit("");
 
-		emitter().emit("static output_actor_%s *output_actor_create_%1$s(FILE *stream, channel_%1$s *channel) {", typeSize);
-		emitter().emit("    output_actor_%s *actor = malloc(sizeof(output_actor_%1$s));", typeSize);
+		emitter().emit("static output_actor_%s *output_actor_create_%1$s(FILE *stream, channel_%1$s *channel, channel_%1$s_mirror *channel_mirror, size_t window) {", typeSize);
+		emitter().emit("    output_actor_%s *actor = calloc(1, sizeof(output_actor_%1$s));", typeSize);
 		emitter().emit("    actor->channel = channel;");
+		emitter().emit("    actor->channel_mirror = channel_mirror;");
 		emitter().emit("    actor->stream = stream;");
+		emitter().emit("    actor->window = window;");
+		emitter().emit("    actor->batch = %d < %s / 2 ? %1$d : %2$s / 2;", batch, bufferSize);
+		emitter().emit("    if (actor->batch == 0) {");
+		emitter().emit("        actor->batch = 1;");
+		emitter().emit("    }");
 		emitter().emit("    return actor;");
 		emitter().emit("}");
 		emitter().emit("");
 
+		emitter().emit("static void output_actor_drain_%s(output_actor_%1$s *actor, size_t tokens) {", typeSize);
+		emitter().emit("	channel_%s *channel = actor->channel;", typeSize);
+		emitter().emit("	size_t start = %s;", ringIndex("channel->read", bufferSize));
+		emitter().emit("	size_t first = %s - start;", bufferSize);
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	fwrite(&channel->buffer[start], sizeof(%s), first, actor->stream);", tokenType);
+		emitter().emit("	if (tokens > first) {");
+		emitter().emit("		fwrite(channel->buffer, sizeof(%s), tokens - first, actor->stream);", tokenType);
+		emitter().emit("	}");
+		emitter().emit("	channel_consume_%s(channel, actor->channel_mirror, tokens);", typeSize);
+		emitter().emit("}");
+		emitter().emit("");
+
 		emitter().emit("static void output_actor_destroy_%s(output_actor_%1$s *actor) {", typeSize);
+		emitter().emit("    size_t tokens = actor->channel->write - actor->channel->read;");
+		emitter().emit("    if (tokens > 0) {");
+		emitter().emit("        output_actor_drain_%s(actor, tokens);", typeSize);
+		emitter().emit("    }");
+		emitter().emit("    fflush(actor->stream);");
 		emitter().emit("    free(actor);");
 		emitter().emit("}");
 		emitter().emit("");
 
 		emitter().emit("static _Bool output_actor_run_%s(output_actor_%1$s* actor) {", typeSize);
-		emitter().emit("    channel_%s *channel = actor->channel;", typeSize);
-		emitter().emit("    if (channel->write > 0) {");
-		emitter().emit("        fwrite(channel->buffer, sizeof(%s), channel->write, actor->stream);", tokenType);
-		emitter().emit("        channel->write = 0;");
-		emitter().emit("        return true;");
-		emitter().emit("    } else {");
-		emitter().emit("        return false;");
-		emitter().emit("    }");
+		emitter().emit("	size_t tokens = actor->channel->write - actor->channel->read;");
+		emitter().emit("	if (tokens == 0 || (tokens < actor->batch && %s - tokens >= actor->window)) {", bufferSize);
+		emitter().emit("		return false;");
+		emitter().emit("	}");
+		emitter().emit("	output_actor_drain_%s(actor, tokens);", typeSize);
+		emitter().emit("	return true;");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * The region of a network port is a ring that the host and the network share. The writer advances write and the
+	 * reader advances read, and end is set by the host when an input is complete and by the network when an output
+	 * is. A region that the host preloads before the start is written once with end set. The number of tokens of the
+	 * ring is set in capacity, since the regions of the ports of a type may differ in length.
+	 */
+	default void ioRegionCodeForType(Type type) {
+		String tokenType = backend().code().type(type);
+
+		emitter().emit("typedef struct {");
+		emitter().emit("	volatile size_t read CACHE_ALIGNED;");
+		emitter().emit("	volatile size_t write CACHE_ALIGNED;");
+		emitter().emit("	volatile size_t end CACHE_ALIGNED;");
+		emitter().emit("	size_t capacity;");
+		emitter().emit("	%s buffer[] CACHE_ALIGNED;", tokenType);
+		emitter().emit("} io_region_%s;", tokenType);
+		emitter().emit("");
+	}
+
+	/*
+	 * The memory input actor copies the tokens that the host has made available from the region into the channels,
+	 * in at most two segments, and publishes them after a fence. An input that is not yet complete counts as
+	 * progress, so that the network does not terminate while the host is still filling the region.
+	 */
+	default void memoryInputActorCodeForType(Type type, int[] size) {
+		String tokenType = backend().code().type(type);
+		List<String> sizeStrings = Arrays.stream(size)
+				.mapToObj(this::sizeToString)
+				.collect(Collectors.toList());
+		String typeSize = tokenType + "_" + String.join("_", sizeStrings);
+
+		emitter().emit("typedef struct {");
+		emitter().emit("	channel_list_%s channel_list;", typeSize);
+		emitter().emit("	channel_list_%s_mirror channel_list_mirror;", typeSize);
+		emitter().emit("	io_region_%s *region;", tokenType);
+		emitter().emit("} input_actor_%s;", typeSize);
+		emitter().emit("");
+
+		emitter().emit("static input_actor_%s *input_actor_create_%1$s(io_region_%s *region, channel_list_%1$s channel_list, channel_list_%1$s_mirror channel_list_mirror) {", typeSize, tokenType);
+		emitter().emit("    input_actor_%s *actor = calloc(1, sizeof(input_actor_%1$s));", typeSize);
+		emitter().emit("    actor->channel_list = channel_list;");
+		emitter().emit("    actor->channel_list_mirror = channel_list_mirror;");
+		emitter().emit("    actor->region = region;");
+		emitter().emit("    return actor;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void input_actor_destroy_%s(input_actor_%1$s *actor) {", typeSize);
+		emitter().emit("    free(actor);");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static _Bool input_actor_run_%s(input_actor_%1$s *actor) {", typeSize);
+		emitter().emit("	io_region_%s *region = actor->region;", tokenType);
+		emitter().emit("	size_t end = region->end;");
+		emitter().emit("	__sync_synchronize(); // the tokens written before end are visible");
+		emitter().emit("	size_t read = region->read;");
+		emitter().emit("	size_t tokens = region->write - read;");
+		emitter().emit("	size_t space = channel_space_%s(actor->channel_list_mirror);", typeSize);
+		emitter().emit("	if (space < tokens) {");
+		emitter().emit("		tokens = space;");
+		emitter().emit("	}");
+		emitter().emit("	if (tokens == 0) {");
+		emitter().emit("		return region->write == read && !end;");
+		emitter().emit("	}");
+		emitter().emit("	size_t start = read %% region->capacity;");
+		emitter().emit("	size_t first = region->capacity - start;");
+		emitter().emit("	if (first > tokens) {");
+		emitter().emit("		first = tokens;");
+		emitter().emit("	}");
+		emitter().emit("	channel_write_staged_%s(actor->channel_list, actor->channel_list_mirror, 0, &region->buffer[start], first);", typeSize);
+		emitter().emit("	if (tokens > first) {");
+		emitter().emit("		channel_write_staged_%s(actor->channel_list, actor->channel_list_mirror, first, region->buffer, tokens - first);", typeSize);
+		emitter().emit("	}");
+		emitter().emit("	__sync_synchronize();");
+		emitter().emit("	channel_publish_%s(actor->channel_list, actor->channel_list_mirror, tokens);", typeSize);
+		emitter().emit("	region->read = read + tokens;");
+		emitter().emit("	return true;");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * The memory output actor copies the tokens of the channel into the region, in at most two segments. A full
+	 * region counts as progress while the channel has tokens, since the host is expected to drain it, and the region
+	 * is ended when the actor is destroyed.
+	 */
+	default void memoryOutputActorCodeForType(Type type, int size) {
+		String tokenType = backend().code().type(type);
+		String typeSize = tokenType + "_" + sizeToString(size);
+
+		emitter().emit("typedef struct {");
+		emitter().emit("	channel_%s *channel;", typeSize);
+		emitter().emit("	channel_%s_mirror *channel_mirror;", typeSize);
+		emitter().emit("	io_region_%s *region;", tokenType);
+		emitter().emit("} output_actor_%s;", typeSize);
+		emitter().emit("");
+
+		emitter().emit("static output_actor_%s *output_actor_create_%1$s(io_region_%s *region, channel_%1$s *channel, channel_%1$s_mirror *channel_mirror) {", typeSize, tokenType);
+		emitter().emit("    output_actor_%s *actor = calloc(1, sizeof(output_actor_%1$s));", typeSize);
+		emitter().emit("    actor->channel = channel;");
+		emitter().emit("    actor->channel_mirror = channel_mirror;");
+		emitter().emit("    actor->region = region;");
+		emitter().emit("    return actor;");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static void output_actor_destroy_%s(output_actor_%1$s *actor) {", typeSize);
+		emitter().emit("    __sync_synchronize();");
+		emitter().emit("    actor->region->end = 1;");
+		emitter().emit("    free(actor);");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static _Bool output_actor_run_%s(output_actor_%1$s *actor) {", typeSize);
+		emitter().emit("	channel_%s *channel = actor->channel;", typeSize);
+		emitter().emit("	io_region_%s *region = actor->region;", tokenType);
+		emitter().emit("	size_t tokens = channel->write - channel->read;");
+		emitter().emit("	if (tokens == 0) {");
+		emitter().emit("		return false;");
+		emitter().emit("	}");
+		emitter().emit("	size_t write = region->write;");
+		emitter().emit("	size_t space = region->capacity - (write - region->read);");
+		emitter().emit("	if (space < tokens) {");
+		emitter().emit("		tokens = space;");
+		emitter().emit("	}");
+		emitter().emit("	if (tokens > 0) {");
+		emitter().emit("		size_t start = write %% region->capacity;");
+		emitter().emit("		size_t first = region->capacity - start;");
+		emitter().emit("		if (first > tokens) {");
+		emitter().emit("			first = tokens;");
+		emitter().emit("		}");
+		emitter().emit("		channel_peek_%s(channel, 0, first, &region->buffer[start]);", typeSize);
+		emitter().emit("		channel_peek_%s(channel, first, tokens - first, region->buffer);", typeSize);
+		emitter().emit("		channel_consume_%s(channel, actor->channel_mirror, tokens);", typeSize);
+		emitter().emit("		__sync_synchronize();");
+		emitter().emit("		region->write = write + tokens;");
+		emitter().emit("	}");
+		emitter().emit("	return true;");
 		emitter().emit("}");
 		emitter().emit("");
 	}
@@ -6,6 +6,7 @@ import org.multij.MultiJ;
 import se.lth.cs.tycho.attribute.*;
 import se.lth.cs.tycho.backend.c.util.Box;
 import se.lth.cs.tycho.backend.chisel.CodeChisel;
+import se.lth.cs.tycho.backend.chisel.FifoChisel;
 import se.lth.cs.tycho.backend.chisel.IOVariables;
 import se.lth.cs.tycho.compiler.CompilationTask;
 import se.lth.cs.tycho.compiler.Context;
@@ -98,6 +99,15 @@ public interface Backend {
 	@Binding(LAZY) default MainNetwork mainNetwork() {
 		return MultiJ.from(MainNetwork.class).bind("backend").to(this).instance();
 	}
+	@Binding(LAZY) default Mapping mapping() {
+		return MultiJ.from(Mapping.class).bind("backend").to(this).instance();
+	}
+	@Binding(LAZY) default Sdf sdf() {
+		return MultiJ.from(Sdf.class).bind("backend").to(this).instance();
+	}
+	@Binding(LAZY) default Memory memory() {
+		return MultiJ.from(Memory.class).bind("backend").to(this).instance();
+	}
 	@Binding(LAZY) default Global global() {
 		return MultiJ.from(Global.class).bind("backend").to(this).instance();
 	}
@@ -141,6 +151,10 @@ public interface Backend {
 		return MultiJ.from(CodeChisel.class).bind("backend").to(this).instance();
 	}
 
+	@Binding(LAZY) default FifoChisel fifoChisel() {
+		return MultiJ.from(FifoChisel.class).bind("backend").to(this).instance();
+	}
+
 	@Binding(LAZY) default VariableScopes variableScopes() { return task().getModule(VariableScopes.key);
 	}
 }
@@ -173,10 +173,10 @@ public interface BasicChannels extends Channels {
 		emitter().emit("");
 		emitter().emit("        size_t tokens_after_wrap = channel->tokens - tokens_before_wrap;");
 		emitter().emit("        if (tokens_after_wrap > 0) {");
-		emitter().emit("            fwrite(&channel->buffer, sizeof(%s), tokens_after_wrap, actor->stream);", tokenType);
+		emitter().emit("            fwrite(channel->buffer, sizeof(%s), tokens_after_wrap, actor->stream);", tokenType);
 		emitter().emit("        }");
 		emitter().emit("");
-		emitter().emit("        //channel->head = (channel->head + channel->tokens) %% BUFFER_SIZE;");
+		emitter().emit("        channel->head = (channel->head + channel->tokens) %% BUFFER_SIZE;");
 		emitter().emit("        channel->tokens = 0;");
 		emitter().emit("        return true;");
 		emitter().emit("    } else {");
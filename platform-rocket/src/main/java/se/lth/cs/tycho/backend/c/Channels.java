@@ -3,9 +3,21 @@ package se.lth.cs.tycho.backend.c;
 import org.multij.Binding;
 import org.multij.BindingKind;
 import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.ChannelCapacity;
 import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.Transition;
 import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Network;
 import se.lth.cs.tycho.ir.util.ImmutableEntry;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.IntegerSetting;
+import se.lth.cs.tycho.settings.OnOffSetting;
+import se.lth.cs.tycho.type.AlgebraicType;
 import se.lth.cs.tycho.type.IntType;
 import se.lth.cs.tycho.type.Type;
 
@@ -22,37 +34,613 @@ public interface Channels {
 	void channelListCodeForType(Type type, int[] size);
 	void inputActorCodeForType(Type type, int[] size);
 	void outputActorCodeForType(Type type, int size);
+	void broadcastCodeForType(Type type, int readers, int size);
+	void hardwareFifoCodeForType(Type type, int fifo, int depth);
+	void hardwareFifoInstructions();
+	void ioRegionCodeForType(Type type);
+	void memoryInputActorCodeForType(Type type, int[] size);
+	void memoryOutputActorCodeForType(Type type, int size);
 
+	final int DEFAULT_BUFFER_SIZE = 256; // BUFFER_SIZE unless it is defined when compiling
+
+	// The custom opcode and the functions of the hardware fifos
+	final int FIFO_CUSTOM = 3;
+	final int FIFO_LEVEL = 0;
+	final int FIFO_PEEK = 1;
+	final int FIFO_CONSUME = 2;
+	final int FIFO_SPACE = 3;
+	final int FIFO_WRITE = 4;
+	final int FIFO_PUBLISH = 5;
+
+	IntegerSetting ioBatchTokens = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "io-batch-tokens";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of tokens that the input actors of the network read at a time.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 1024;
+		}
+	};
+
+	IntegerSetting outputBatchTokens = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "output-batch-tokens";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of tokens that the output actors of the network wait for before they write, at most half their channel.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 1024;
+		}
+	};
+
+	OnOffSetting memoryIo = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "memory-io";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Reads the input ports of the network from and writes the output ports to memory regions that the host fills and drains, instead of files.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	IntegerSetting ioRegionTokens = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "io-region-tokens";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of tokens in the memory region of a network port, with memory-io, unless IO_REGION_TOKENS_<port> is defined when compiling.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 65536;
+		}
+	};
+
+	OnOffSetting pow2Buffers = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "pow2-buffers";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Rounds channel capacities up to powers of two and indexes the channels with a mask.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	OnOffSetting autoBufferSizing = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "auto-buffer-sizing";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Sizes the channels without a buffersize attribute from the token windows of their ports.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	IntegerSetting bufferFirings = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "buffer-firings";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of firings of the larger token window that an automatically sized channel holds. The channel also holds at least p + c - gcd(p, c) tokens for windows p and c, which is only deadlock free for single-rate ports, so ports with several rates get p + c.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 2;
+		}
+	};
+
+	OnOffSetting broadcastChannels = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "broadcast-channels";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Gives an output port that is connected to several instances one buffer with a read cursor per instance.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	OnOffSetting channelStatistics = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "channel-statistics";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Counts the tokens, the peak occupancy, the stalls and an occupancy histogram of every channel, and prints them in the placement profile format when the network terminates.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	final int OCCUPANCY_BUCKETS = 8;
+
+	OnOffSetting hardwareFifos = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "hardware-fifos";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Carries the connections with a fifo attribute through queues in generated RoCC accelerators instead of buffers in memory.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	default boolean autoSizing() {
+		return backend().context().getConfiguration().get(autoBufferSizing);
+	}
+
+	default boolean pow2() {
+		return backend().context().getConfiguration().get(pow2Buffers);
+	}
+
+	default int ioBatch() {
+		return backend().context().getConfiguration().get(ioBatchTokens);
+	}
+
+	default int outputBatch() {
+		return backend().context().getConfiguration().get(outputBatchTokens);
+	}
+
+	default boolean statistics() {
+		return backend().context().getConfiguration().get(channelStatistics);
+	}
+
+	/*
+	 * The ring channels count their statistics, but broadcast channels, hardware fifos and channels of serialized
+	 * tokens do not.
+	 */
+	default boolean hasStatistics(Connection connection) {
+		if (!statistics() || isBroadcast(connection.getSource()) || isHardwareFifo(connection)) {
+			return false;
+		}
+		Type type = alignedConnectionTypes(connection);
+		return !(type instanceof AlgebraicType || backend().alias().isAlgebraicType(type)) || backend().channels().isInlineSlot(type);
+	}
+
+	default boolean memoryIo() {
+		return backend().context().getConfiguration().get(memoryIo);
+	}
+
+	/*
+	 * The connection of a port of the network, or of the first of them for an input port
+	 */
+	default Optional<Connection> networkPortConnection(Connection.End end) {
+		return backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> connection.getSource().equals(end) || connection.getTarget().equals(end))
+				.findFirst();
+	}
+
+	/*
+	 * A port of the network is served from a region in memory with memory-io, unless it carries serialized tokens,
+	 * which have no fixed size and are read from and written to a file instead.
+	 */
+	default boolean isMemoryIoPort(Connection.End end) {
+		if (!memoryIo()) {
+			return false;
+		}
+		Optional<Connection> connection = networkPortConnection(end);
+		if (!connection.isPresent()) {
+			return false;
+		}
+		Type type = alignedConnectionTypes(connection.get());
+		return !(type instanceof AlgebraicType || backend().alias().isAlgebraicType(type)) || backend().channels().isInlineSlot(type);
+	}
+
+	/*
+	 * With memory-io, every port of the network has a region in memory of its token type. The host places the
+	 * regions through their sections and fills or drains them. The number of tokens of the region of a port is
+	 * IO_REGION_TOKENS_<port>, which defaults to IO_REGION_TOKENS.
+	 */
+	default void ioRegionCode() {
+		if (!memoryIo()) {
+			return;
+		}
+		Network network = backend().task().getNetwork();
+		emitter().emitRawLine("#ifndef IO_REGION_TOKENS\n" +
+				"#define IO_REGION_TOKENS " + backend().context().getConfiguration().get(ioRegionTokens) + "\n" +
+				"#endif\n");
+		List<PortDecl> ports = new ArrayList<>(network.getInputPorts());
+		ports.addAll(network.getOutputPorts());
+		Set<String> generated = new HashSet<>();
+		for (PortDecl port : ports) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			Optional<Connection> connection = networkPortConnection(end);
+			if (!connection.isPresent()) {
+				continue;
+			}
+			if (!isMemoryIoPort(end)) {
+				backend().context().getReporter().report(new Diagnostic(Diagnostic.Kind.WARNING,
+						String.format("The network port %s carries serialized tokens and uses a file instead of a memory region.", port.getName())));
+				continue;
+			}
+			emitter().emitRawLine(String.format("#ifndef IO_REGION_TOKENS_%s\n#define IO_REGION_TOKENS_%1$s IO_REGION_TOKENS\n#endif\n", port.getName()));
+			Type type = alignedConnectionTypes(connection.get());
+			if (generated.add(backend().code().type(type))) {
+				ioRegionCodeForType(type);
+			}
+		}
+	}
+
+	/*
+	 * The input and output actors are generated for the channels of the network ports, so that they match the
+	 * channel types that the ports are connected to.
+	 */
 	default void outputActorCode() {
-		backend().task().getNetwork().getOutputPorts().stream()
-				.map(backend().types()::declaredPortType)
-				.distinct()
-				.forEach((type) -> outputActorCodeForType(type, 0));
+		Network network = backend().task().getNetwork();
+		Set<String> generated = new HashSet<>();
+		for (PortDecl port : network.getOutputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			network.getConnections().stream()
+					.filter(connection -> connection.getTarget().equals(end))
+					.findFirst()
+					.ifPresent(connection -> {
+						Type type = alignedConnectionTypes(connection);
+						int size = connectionBufferSize(connection);
+						if (!generated.add(backend().code().type(type) + "_" + size)) {
+							return;
+						}
+						if (isMemoryIoPort(end)) {
+							memoryOutputActorCodeForType(type, size);
+						} else {
+							outputActorCodeForType(type, size);
+						}
+					});
+		}
 	}
 
 	default void inputActorCode() {
-		backend().task().getNetwork().getInputPorts().stream()
-				.map(backend().types()::declaredPortType)
-				.distinct()
-				.forEach((type) -> inputActorCodeForType(type, new int[] {0}));
+		Network network = backend().task().getNetwork();
+		Set<String> generated = new HashSet<>();
+		for (PortDecl port : network.getInputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			List<Connection> outgoing = network.getConnections().stream()
+					.filter(connection -> connection.getSource().equals(end))
+					.collect(Collectors.toList());
+			if (!outgoing.isEmpty()) {
+				Type type = alignedConnectionTypes(outgoing.get(0));
+				int[] sizes = outgoing.stream().mapToInt(this::connectionBufferSize).toArray();
+				if (!generated.add(backend().code().type(type) + Arrays.toString(sizes))) {
+					continue;
+				}
+				if (isMemoryIoPort(end)) {
+					memoryInputActorCodeForType(type, sizes);
+				} else {
+					inputActorCodeForType(type, sizes);
+				}
+			}
+		}
 	}
 
 	default void fifo_h() {
 		emitter().emit("#include <stdint.h>");
+		emitter().emit("#include <string.h>");
 		backend().main().includeUser("global.h");
 		emitter().emit("");
 		emitter().emitRawLine("#ifndef BUFFER_SIZE\n" +
-				"#define BUFFER_SIZE 256\n" +
+				"#define BUFFER_SIZE " + DEFAULT_BUFFER_SIZE + "\n" +
 				"#endif\n");
+		emitter().emit("#define CACHE_BLOCK_BYTES %d", Main.CACHE_BLOCK_BYTES);
+		emitter().emit("#define CACHE_ALIGNED __attribute__((aligned(CACHE_BLOCK_BYTES)))");
+		emitter().emit("");
+		if (pow2()) {
+			emitter().emit("_Static_assert((BUFFER_SIZE & (BUFFER_SIZE - 1)) == 0, \"BUFFER_SIZE must be a power of two\");");
+			emitter().emit("");
+			reportPowerOfTwoCost();
+		}
+		if (!hardwareFifoConnections().isEmpty()) {
+			hardwareFifoInstructions();
+		}
+		if (statistics()) {
+			statisticsCode();
+		}
+		if (backend().controllers().accounting()) {
+			backend().controllers().accountingCode();
+		}
 		channelCode();
 	}
 
+	/*
+	 * The reader of a channel samples its occupancy every time it tests for tokens, into a histogram of buckets of
+	 * equal parts of the capacity. A test that finds too few tokens is an empty stall.
+	 */
+	default void statisticsCode() {
+		emitter().emit("#define OCCUPANCY_BUCKETS %d", OCCUPANCY_BUCKETS);
+		emitter().emit("");
+		emitter().emit("typedef struct {");
+		emitter().emit("	size_t tokens;");
+		emitter().emit("	size_t peak;");
+		emitter().emit("	size_t empty_stalls;");
+		emitter().emit("	size_t occupancy[OCCUPANCY_BUCKETS];");
+		emitter().emit("} channel_stats;");
+		emitter().emit("");
+		emitter().emit("static inline void channel_stats_sample(channel_stats *stats, size_t occupancy, size_t capacity, size_t tokens) {");
+		emitter().emit("	if (occupancy > stats->peak) {");
+		emitter().emit("		stats->peak = occupancy;");
+		emitter().emit("	}");
+		emitter().emit("	stats->occupancy[occupancy * OCCUPANCY_BUCKETS / (capacity + 1)]++;");
+		emitter().emit("	if (occupancy < tokens) {");
+		emitter().emit("		stats->empty_stalls++;");
+		emitter().emit("	}");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
 	default Type alignedConnectionTypes(Connection connection) {
 		Type type = backend().types().connectionType(backend().task().getNetwork(), connection);
 		return intToNearest8Mult(type);
 	}
 
+	/*
+	 * A buffer size of 0 stands for BUFFER_SIZE. Channels inside a statically scheduled region get the smallest
+	 * size that their schedule runs in, unless a size is given. Other channels are sized from the token windows of
+	 * their ports if automatic sizing is on, and channels on the border of a region hold at least one period of it.
+	 */
 	default int connectionBufferSize(Connection connection) {
+		int size = requestedBufferSize(connection);
+		return pow2() ? powerOfTwo(size) : size;
+	}
+
+	default int requestedBufferSize(Connection connection) {
+		int declared = declaredBufferSize(connection);
+		if (declared == 0) {
+			OptionalInt minimal = backend().sdf().minimalBufferSize(connection);
+			if (minimal.isPresent()) {
+				return minimal.getAsInt();
+			}
+			int size = 0;
+			if (autoSizing()) {
+				size = ChannelCapacity.capacity(productionWindow(connection.getSource()), consumptionWindow(connection.getTarget()),
+						backend().context().getConfiguration().get(bufferFirings), hasFixedRates(connection));
+			}
+			int border = backend().sdf().borderBufferSize(connection);
+			return border > (size == 0 ? DEFAULT_BUFFER_SIZE : size) ? border : size;
+		}
+		return declared;
+	}
+
+	/*
+	 * The largest number of tokens that one transition writes to a port. The input actors of the network write as
+	 * many tokens as there is space for.
+	 */
+	default int productionWindow(Connection.End source) {
+		if (!source.getInstance().isPresent()) {
+			return 1;
+		}
+		ActorMachine actorMachine = backend().mapping().actorMachine(backend().mapping().instance(source.getInstance().get()));
+		int window = 1;
+		for (Transition transition : actorMachine.getTransitions()) {
+			window = Math.max(window, backend().sdf().rate(transition.getOutputRates(), source.getPort()));
+		}
+		return window;
+	}
+
+	/*
+	 * The largest number of tokens that the controller tests for or one transition consumes from a port.
+	 */
+	default int consumptionWindow(Connection.End target) {
+		if (!target.getInstance().isPresent()) {
+			return 1;
+		}
+		ActorMachine actorMachine = backend().mapping().actorMachine(backend().mapping().instance(target.getInstance().get()));
+		int window = 1;
+		for (Transition transition : actorMachine.getTransitions()) {
+			window = Math.max(window, backend().sdf().rate(transition.getInputRates(), target.getPort()));
+		}
+		for (Condition condition : actorMachine.getConditions()) {
+			if (condition instanceof PortCondition) {
+				PortCondition portCondition = (PortCondition) condition;
+				if (portCondition.isInputCondition() && portCondition.getPortName().getName().equals(target.getPort())) {
+					window = Math.max(window, portCondition.N());
+				}
+			}
+		}
+		return window;
+	}
+
+	/*
+	 * The ports of a connection have fixed rates if the transitions that use them, and the conditions that test the
+	 * input port, all agree on one number of tokens.
+	 */
+	default boolean hasFixedRates(Connection connection) {
+		Set<Integer> production = new HashSet<>();
+		Set<Integer> consumption = new HashSet<>();
+		connection.getSource().getInstance().ifPresent(name -> {
+			for (Transition transition : backend().mapping().actorMachine(backend().mapping().instance(name)).getTransitions()) {
+				production.add(backend().sdf().rate(transition.getOutputRates(), connection.getSource().getPort()));
+			}
+		});
+		connection.getTarget().getInstance().ifPresent(name -> {
+			ActorMachine actorMachine = backend().mapping().actorMachine(backend().mapping().instance(name));
+			for (Transition transition : actorMachine.getTransitions()) {
+				consumption.add(backend().sdf().rate(transition.getInputRates(), connection.getTarget().getPort()));
+			}
+			for (Condition condition : actorMachine.getConditions()) {
+				if (condition instanceof PortCondition) {
+					PortCondition portCondition = (PortCondition) condition;
+					if (portCondition.isInputCondition() && portCondition.getPortName().getName().equals(connection.getTarget().getPort())) {
+						consumption.add(portCondition.N());
+					}
+				}
+			}
+		});
+		production.remove(0);
+		consumption.remove(0);
+		return production.size() <= 1 && consumption.size() <= 1;
+	}
+
+	/*
+	 * An output port of an instance that is connected to several instances can share one buffer between its readers.
+	 * The tokens are written once, and the space is that of the slowest reader. Network ports, algebraic tokens and
+	 * channels inside statically scheduled regions keep a buffer per connection.
+	 */
+	default boolean isBroadcast(Connection.End source) {
+		if (!backend().context().getConfiguration().get(broadcastChannels) || !source.getInstance().isPresent()) {
+			return false;
+		}
+		List<Connection> outgoing = outgoing(source);
+		if (outgoing.size() < 2) {
+			return false;
+		}
+		Type type = alignedConnectionTypes(outgoing.get(0));
+		if (type instanceof AlgebraicType || backend().alias().isAlgebraicType(type)) {
+			return false;
+		}
+		return outgoing.stream().allMatch(connection -> connection.getTarget().getInstance().isPresent()
+				&& !backend().sdf().minimalBufferSize(connection).isPresent());
+	}
+
+	default List<Connection> outgoing(Connection.End source) {
+		return backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> connection.getSource().equals(source))
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * A broadcast buffer is as large as the largest buffer of its connections, and BUFFER_SIZE if none has a size.
+	 */
+	default int broadcastBufferSize(Connection.End source) {
+		int size = 0;
+		for (Connection connection : outgoing(source)) {
+			int connectionSize = connectionBufferSize(connection);
+			if (connectionSize == 0 && size == 0) {
+				continue;
+			}
+			size = Math.max(size, connectionSize == 0 ? DEFAULT_BUFFER_SIZE : connectionSize);
+		}
+		return size;
+	}
+
+	/*
+	 * A connection with a fifo attribute, whose value is the depth of the queue, is carried by a hardware queue in the
+	 * RoCC accelerator of the receiving tile. Only connections of scalar tokens between instances on different cores
+	 * that are the only connection of their output port qualify, and the queues are numbered in network order.
+	 */
+	@Binding(BindingKind.LAZY)
+	default List<Connection> hardwareFifoConnections() {
+		List<Connection> result = new ArrayList<>();
+		if (!backend().context().getConfiguration().get(hardwareFifos)) {
+			return result;
+		}
+		Mapping mapping = backend().mapping();
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			if (!connection.getValueAttribute("fifo").isPresent()) {
+				continue;
+			}
+			String name = mapping.endName(connection.getSource()) + " -> " + mapping.endName(connection.getTarget());
+			Optional<String> source = connection.getSource().getInstance();
+			Optional<String> target = connection.getTarget().getInstance();
+			Type type = alignedConnectionTypes(connection);
+			if (!source.isPresent() || !target.isPresent() || mapping.coreOf(source.get()) == mapping.coreOf(target.get())) {
+				reportIgnoredFifo(name, "it does not connect instances on different cores");
+			} else if (!backend().code().isScalar(type) || (type instanceof IntType && ((IntType) type).getSize().getAsInt() > 64)) {
+				reportIgnoredFifo(name, "its tokens are not scalars");
+			} else if (outgoing(connection.getSource()).size() > 1) {
+				reportIgnoredFifo(name, "its output port has several connections");
+			} else if (backend().sdf().regionOf(source.get()).isPresent() || backend().sdf().regionOf(target.get()).isPresent()) {
+				reportIgnoredFifo(name, "it is connected to a statically scheduled region");
+			} else {
+				result.add(connection);
+			}
+		}
+		return result;
+	}
+
+	default void reportIgnoredFifo(String connection, String reason) {
+		backend().context().getReporter().report(new Diagnostic(Diagnostic.Kind.WARNING,
+				String.format("The connection %s uses a buffer in memory instead of a hardware fifo, since %s.", connection, reason)));
+	}
+
+	default boolean isHardwareFifo(Connection connection) {
+		return hardwareFifoConnections().contains(connection);
+	}
+
+	default boolean isHardwareFifo(Connection.End source) {
+		List<Connection> outgoing = outgoing(source);
+		return outgoing.size() == 1 && isHardwareFifo(outgoing.get(0));
+	}
+
+	default int hardwareFifoNumber(Connection connection) {
+		return hardwareFifoConnections().indexOf(connection);
+	}
+
+	/*
+	 * The depth of a hardware queue is a power of two of at least two, and at least what the token windows of its ports
+	 * need.
+	 */
+	default int hardwareFifoDepth(Connection connection) {
+		int declared = (int) backend().constants().intValue(connection.getValueAttribute("fifo").get().getValue()).getAsLong();
+		int minimal = ChannelCapacity.minimal(productionWindow(connection.getSource()), consumptionWindow(connection.getTarget()), hasFixedRates(connection));
+		return powerOfTwo(Math.max(2, Math.max(declared, minimal)));
+	}
+
+	default int powerOfTwo(int size) {
+		int result = 1;
+		while (result < size) {
+			result = result * 2;
+		}
+		return size == 0 ? 0 : result;
+	}
+
+	default int declaredBufferSize(Connection connection) {
 		Optional<ToolValueAttribute> attribute = connection.getValueAttribute("buffersize");
 		if (!attribute.isPresent()) {
 			attribute = connection.getValueAttribute("bufferSize");
@@ -64,8 +652,26 @@ public interface Channels {
 		}
 	}
 
+	default void reportPowerOfTwoCost() {
+		List<String> rounded = new ArrayList<>();
+		long extra = 0;
+		Mapping mapping = backend().mapping();
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			int requested = requestedBufferSize(connection);
+			if (requested != powerOfTwo(requested)) {
+				extra += powerOfTwo(requested) - requested;
+				rounded.add(String.format("%s -> %s: %d -> %d", mapping.endName(connection.getSource()), mapping.endName(connection.getTarget()), requested, powerOfTwo(requested)));
+			}
+		}
+		if (!rounded.isEmpty()) {
+			backend().context().getReporter().report(new Diagnostic(Diagnostic.Kind.INFO,
+					String.format("Power of two channels use %d more tokens of buffer space {%s}.", extra, String.join(", ", rounded))));
+		}
+	}
+
 	default void channelCode() {
 		Map<Type, Set<Integer>> buffers = backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> !isBroadcast(connection.getSource()) && !isHardwareFifo(connection))
 				.collect(Collectors.groupingBy(
 						this::alignedConnectionTypes,
 						Collectors.mapping(
@@ -80,6 +686,7 @@ public interface Channels {
 				.getConnections().stream()
 				.collect(Collectors.groupingBy(Connection::getSource))
 				.entrySet().stream()
+				.filter(entry -> !isBroadcast(entry.getKey()) && !isHardwareFifo(entry.getKey()))
 				.map(entry -> ImmutableEntry.of(
 						alignedConnectionTypes(entry.getValue().get(0)),
 						entry.getValue().stream().map(this::connectionBufferSize).collect(Collectors.toList())))
@@ -91,6 +698,24 @@ public interface Channels {
 			int[] sizes = entry.getValue().stream().mapToInt(s -> s).toArray();
 			channelListCodeForType(type, sizes);
 		});
+
+		Set<String> broadcasts = new HashSet<>();
+		backend().task().getNetwork().getConnections().stream()
+				.map(Connection::getSource)
+				.distinct()
+				.filter(this::isBroadcast)
+				.forEach(source -> {
+					Type type = alignedConnectionTypes(outgoing(source).get(0));
+					int readers = outgoing(source).size();
+					int size = broadcastBufferSize(source);
+					if (broadcasts.add(backend().code().type(type) + "_" + readers + "_" + size)) {
+						broadcastCodeForType(type, readers, size);
+					}
+				});
+
+		for (Connection connection : hardwareFifoConnections()) {
+			hardwareFifoCodeForType(alignedConnectionTypes(connection), hardwareFifoNumber(connection), hardwareFifoDepth(connection));
+		}
 	}
 
 	default Type intToNearest8Mult(Type t) {
@@ -4,9 +4,12 @@ import org.multij.Binding;
 import org.multij.BindingKind;
 import org.multij.Module;
 import se.lth.cs.tycho.attribute.Types;
+import se.lth.cs.tycho.ir.IRNode;
 import se.lth.cs.tycho.ir.Port;
 import se.lth.cs.tycho.ir.decl.GeneratorVarDecl;
 import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Scope;
 import se.lth.cs.tycho.ir.expr.*;
 import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.stmt.*;
@@ -301,13 +304,12 @@ public interface Code {
 		String tmp = variables().generateTemp();
 		Type type = types().type(input);
 		emitter().emit("%s = %s;", declaration(type, tmp), backend().defaultValues().defaultValue(type));
-		trackable().track(tmp, type);
+		if (!backend().channels().isInlineSlot(types().portType(input.getPort()))) {
+			// tokens in inline slots are owned by the channel
+			trackable().track(tmp, type);
+		}
 		if (input.hasRepeat()) {
-		    if (input.getOffset() == 0) {
-				emitter().emit("channel_peek_%s(self->%s_channel, 0, %d, %s.data);", inputPortTypeSize(input.getPort()), input.getPort().getName(), input.getRepeat(), tmp);
-			} else {
-		    	throw new RuntimeException("not implemented");
-			}
+			emitter().emit("channel_peek_%s(self->%s_channel, %d, %d, %s.data);", inputPortTypeSize(input.getPort()), input.getPort().getName(), input.getOffset(), input.getRepeat(), tmp);
 		} else {
 			if (input.getOffset() == 0) {
 				emitter().emit("%s = channel_peek_first_%s(self->%s_channel);", tmp, inputPortTypeSize(input.getPort()), input.getPort().getName());
@@ -318,6 +320,76 @@ public interface Code {
 		return tmp;
 	}
 
+	/*
+	 * A scope variable that is initialized by a repeat input and only ever indexed is read in place through a window
+	 * pointer into the receiver buffer. The list variable is only written when the window wraps around the end of
+	 * the buffer. The tokens stay in place until the transition consumes them.
+	 */
+	default boolean isInputWindow(VarDecl decl) {
+		IRNode scope = backend().tree().parent(decl);
+		if (!(scope instanceof Scope)) {
+			return false;
+		}
+		ActorMachine actorMachine = (ActorMachine) backend().tree().parent(scope);
+		return inputWindows().computeIfAbsent(actorMachine, this::collectInputWindows).contains(decl);
+	}
+
+	@Binding(BindingKind.LAZY)
+	default Map<ActorMachine, Set<VarDecl>> inputWindows() { return new HashMap<>(); }
+
+	/*
+	 * The window variables of an actor machine, found in one walk over it.
+	 */
+	default Set<VarDecl> collectInputWindows(ActorMachine actorMachine) {
+		Set<VarDecl> windows = new HashSet<>();
+		for (Scope scope : actorMachine.getScopes()) {
+			if (!scope.isPersistent()) {
+				for (VarDecl decl : scope.getDeclarations()) {
+					if (decl.getValue() instanceof ExprInput && ((ExprInput) decl.getValue()).hasRepeat()) {
+						Type type = types().declaredType(decl);
+						if (type instanceof ListType && isScalar(((ListType) type).getElementType())) {
+							windows.add(decl);
+						}
+					}
+				}
+			}
+		}
+		if (windows.isEmpty()) {
+			return windows;
+		}
+		actorMachine.walk().forEach(node -> {
+			if (node instanceof ExprVariable) {
+				VarDecl decl = backend().varDecls().declaration(((ExprVariable) node).getVariable());
+				IRNode parent = backend().tree().parent(node);
+				if (!(parent instanceof ExprIndexer && ((ExprIndexer) parent).getStructure() == node)
+						|| backend().closures().isDeclaredInClosure(((ExprVariable) node).getVariable())) {
+					windows.remove(decl);
+				}
+			} else if (node instanceof LValueVariable) {
+				windows.remove(backend().varDecls().declaration(((LValueVariable) node).getVariable()));
+			} else if (node instanceof ExprRef) {
+				windows.remove(backend().varDecls().declaration(((ExprRef) node).getVariable()));
+			}
+		});
+		return windows;
+	}
+
+	default boolean isScalar(Type type) {
+		return type instanceof IntType || type instanceof RealType || type instanceof BoolType || type instanceof CharType;
+	}
+
+	default String windowName(VarDecl decl) {
+		return variables().declarationName(decl) + "_window";
+	}
+
+	/*
+	 * Points the window of a scope variable at its input tokens.
+	 */
+	default void initInputWindow(VarDecl decl) {
+		ExprInput input = (ExprInput) decl.getValue();
+		emitter().emit("self->%s = channel_window_%s(self->%s_channel, %d, %d, self->%s.data);", windowName(decl), inputPortTypeSize(input.getPort()), input.getPort().getName(), input.getOffset(), input.getRepeat(), variables().declarationName(decl));
+	}
+
 	default String evaluate(ExprBinaryOp binaryOp) {
 		assert binaryOp.getOperations().size() == 1 && binaryOp.getOperands().size() == 2;
 		Type lhs = types().type(binaryOp.getOperands().get(0));
@@ -1045,6 +1117,12 @@ public interface Code {
 	}
 	String exprIndexing(Type type, ExprIndexer indexer);
 	default String exprIndexing(ListType type, ExprIndexer indexer) {
+		if (indexer.getStructure() instanceof ExprVariable) {
+			VarDecl decl = backend().varDecls().declaration(((ExprVariable) indexer.getStructure()).getVariable());
+			if (isInputWindow(decl)) {
+				return String.format("self->%s[%s]", windowName(decl), evaluate(indexer.getIndex()));
+			}
+		}
 		return String.format("%s.data[%s]", evaluate(indexer.getStructure()), evaluate(indexer.getIndex()));
 	}
 
@@ -1209,8 +1287,20 @@ public interface Code {
 
 	void execute(Statement stmt);
 
+	/*
+	 * Transitions stage their writes and consumes in local cursors, and the channel counters are published once at
+	 * the end of the firing.
+	 */
+	default String writeCursor(Port port) {
+		return "write_cursor_" + port.getName();
+	}
+
+	default String readCursor(Port port) {
+		return "read_cursor_" + port.getName();
+	}
+
 	default void execute(StmtConsume consume) {
-		emitter().emit("channel_consume_%s(self->%s_channel, self->%s_channel_mirror, %d);", inputPortTypeSize(consume.getPort()), consume.getPort().getName(), consume.getPort().getName(), consume.getNumberOfTokens());
+		emitter().emit("%s += %d;", readCursor(consume.getPort()), consume.getNumberOfTokens());
 	}
 
 	default void execute(StmtWrite write) {
@@ -1218,21 +1308,27 @@ public interface Code {
 		if (write.getRepeatExpression() == null) {
 			String portType = type(types().portType(write.getPort()));
 			String tmp = variables().generateTemp();
-			emitter().emit("%s;", declaration(types().portType(write.getPort()), tmp));
-			for (Expression expr : write.getValues()) {
-				emitter().emit("%s = %s;", tmp, evaluate(expr));
-				emitter().emit("channel_write_one_%s(self->%s_channels, self->%s_channels_mirror, %s);", outputPortTypeSize(write.getPort()), portName, portName, tmp);
+			if (write.getValues().size() == 1) {
+				emitter().emit("%s;", declaration(types().portType(write.getPort()), tmp));
+				emitter().emit("%s = %s;", tmp, evaluate(write.getValues().get(0)));
+				emitter().emit("channel_write_one_staged_%s(self->%s_channels, self->%s_channels_mirror, %s, %s);", outputPortTypeSize(write.getPort()), portName, portName, writeCursor(write.getPort()), tmp);
+				emitter().emit("%s++;", writeCursor(write.getPort()));
+			} else {
+				// several tokens are written with one bulk transfer
+				emitter().emit("%s %s[%d];", portType, tmp, write.getValues().size());
+				int i = 0;
+				for (Expression expr : write.getValues()) {
+					emitter().emit("%s[%d] = %s;", tmp, i, evaluate(expr));
+					i++;
+				}
+				emitter().emit("channel_write_staged_%s(self->%s_channels, self->%s_channels_mirror, %s, %s, %d);", outputPortTypeSize(write.getPort()), portName, portName, writeCursor(write.getPort()), tmp, write.getValues().size());
+				emitter().emit("%s += %d;", writeCursor(write.getPort()), write.getValues().size());
 			}
 		} else if (write.getValues().size() == 1) {
-			String portType = type(types().portType(write.getPort()));
 			String value = evaluate(write.getValues().get(0));
 			String repeat = evaluate(write.getRepeatExpression());
-			String temp = variables().generateTemp();
-			emitter().emit("for (size_t %1$s = 0; %1$s < %2$s; %1$s++) {", temp, repeat);
-			emitter().increaseIndentation();
-			emitter().emit("channel_write_one_%1$s(self->%2$s_channels, self->%2$s_channels_mirror, %4$s.data[%5$s]);", outputPortTypeSize(write.getPort()), portName, portName, value, temp);
-			emitter().decreaseIndentation();
-			emitter().emit("}");
+			emitter().emit("channel_write_staged_%1$s(self->%2$s_channels, self->%2$s_channels_mirror, %3$s, %4$s.data, %5$s);", outputPortTypeSize(write.getPort()), portName, writeCursor(write.getPort()), value, repeat);
+			emitter().emit("%s += %s;", writeCursor(write.getPort()), repeat);
 		} else {
 			throw new Error("not implemented");
 		}
@@ -6,11 +6,13 @@ import org.multij.Module;
 import se.lth.cs.tycho.attribute.ScopeLiveness;
 import se.lth.cs.tycho.ir.Annotation;
 import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Scope;
 import se.lth.cs.tycho.ir.entity.am.Transition;
 import se.lth.cs.tycho.ir.entity.am.ctrl.*;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
 import se.lth.cs.tycho.ir.expr.ExprLiteral;
-import se.lth.cs.tycho.ir.network.Instance;
 import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.IntegerSetting;
 import se.lth.cs.tycho.settings.OnOffSetting;
 
 import java.util.*;
@@ -26,14 +28,15 @@ public interface Controllers {
 	}
 
 	default void emitControllerHeader(String name, ActorMachine actorMachine) {
-		List<Instance> instances =  backend().task().getNetwork().getInstances();
-		ArrayList<String> coreNames = new ArrayList<>(instances.size());
-		for (Instance core : instances){
-			coreNames.add(core.getInstanceName());
+		int core = backend().mapping().coreOf(name);
+		emitter().emit("_Bool %s_run(%1$s_state *self) SECTION(\".core%d.text\");", name, core);
+		if (accounting()) {
+			emitter().emit("static _Bool %s_controller(%1$s_state *self) SECTION(\".core%d.text\");", name, core);
 		}
-
-		emitter().emit("_Bool %s_run(%1$s_state *self) SECTION(\".core%d.text\");", name, coreNames.indexOf(name));
-		printTransitionSignatures(name, actorMachine, coreNames.indexOf(name));
+		if (backend().sdf().regionOf(name).isPresent()) {
+			emitter().emit("void %s_sdf_fire(%1$s_state *self) SECTION(\".core%d.text\");", name, core);
+		}
+		printTransitionSignatures(name, actorMachine, core);
 	}
 
 	default void printTransitionSignatures(String name, ActorMachine actorMachine, int index){
@@ -69,15 +72,213 @@ public interface Controllers {
 	};
 
 
+	IntegerSetting firingBudget = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "firing-budget";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of firings after which a controller returns to the scheduler, 0 runs every instance until it blocks. "
+					+ "Overridden by the \"" + FIRINGS_ATTRIBUTE + "\" attribute of an instance.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 0;
+		}
+	};
+
+	IntegerSetting tokenQuota = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "token-quota";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of tokens that a controller may consume from one input port before it returns to the scheduler, 0 for no limit. "
+					+ "Overridden by the \"" + QUOTA_ATTRIBUTE + "\" attribute of an instance.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 0;
+		}
+	};
+
+	OnOffSetting cycleAccounting = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "cycle-accounting";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Counts the cycles and retired instructions of every controller and transition with rdcycle and rdinstret, and prints them per core in the placement profile format when the network terminates.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	IntegerSetting accountingEvent = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "cycle-accounting-event";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Rocket performance event that is also counted with cycle-accounting, written to mhpmevent3 as event mask << 8 | event set. "
+					+ "For example 514 counts the data cache misses, 0 counts no event.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 0;
+		}
+	};
+
+	final String FIRINGS_ATTRIBUTE = "firings";
+	final String QUOTA_ATTRIBUTE = "quota";
+
+	default boolean accounting() {
+		return backend().context().getConfiguration().get(cycleAccounting);
+	}
+
+	default int event() {
+		return accounting() ? backend().context().getConfiguration().get(accountingEvent) : 0;
+	}
+
+	/*
+	 * The counters are read around every visit of a controller and every firing of a transition. The cycle counter
+	 * is read innermost, so the reads of the other counters are not counted as cycles of the actor.
+	 */
+	default void accountingCode() {
+		emitter().emit("#define ACCOUNTING_EVENT %d", event());
+		emitter().emit("#define accounting_read(csr) ({ unsigned long value; asm volatile (\"csrr %%0, \" #csr : \"=r\" (value)); value; })");
+		emitter().emit("");
+		emitter().emit("typedef struct {");
+		emitter().emit("	unsigned long calls;");
+		emitter().emit("	unsigned long cycles;");
+		emitter().emit("	unsigned long instret;");
+		emitter().emit("	unsigned long events;");
+		emitter().emit("} accounting;");
+		emitter().emit("");
+		emitter().emit("static inline accounting accounting_begin(void) {");
+		emitter().emit("	accounting start;");
+		emitter().emit("	start.calls = 0;");
+		emitter().emit("	start.events = ACCOUNTING_EVENT ? accounting_read(mhpmcounter3) : 0;");
+		emitter().emit("	start.instret = accounting_read(instret);");
+		emitter().emit("	start.cycles = accounting_read(cycle);");
+		emitter().emit("	return start;");
+		emitter().emit("}");
+		emitter().emit("");
+		emitter().emit("static inline void accounting_end(accounting *counters, accounting start) {");
+		emitter().emit("	unsigned long cycles = accounting_read(cycle);");
+		emitter().emit("	unsigned long instret = accounting_read(instret);");
+		emitter().emit("	unsigned long events = ACCOUNTING_EVENT ? accounting_read(mhpmcounter3) : 0;");
+		emitter().emit("	counters->calls++;");
+		emitter().emit("	counters->cycles += cycles - start.cycles;");
+		emitter().emit("	counters->instret += instret - start.instret;");
+		emitter().emit("	counters->events += events - start.events;");
+		emitter().emit("}");
+		emitter().emit("");
+		emitter().emit("static inline accounting accounting_sum(const accounting *counters, int count) {");
+		emitter().emit("	accounting sum = { 0, 0, 0, 0 };");
+		emitter().emit("	for (int i = 0; i < count; i++) {");
+		emitter().emit("		sum.calls += counters[i].calls;");
+		emitter().emit("		sum.cycles += counters[i].cycles;");
+		emitter().emit("		sum.instret += counters[i].instret;");
+		emitter().emit("		sum.events += counters[i].events;");
+		emitter().emit("	}");
+		emitter().emit("	return sum;");
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	default void accountingCounters(ActorMachine actorMachine) {
+		emitter().emit("// cycle accounting");
+		emitter().emit("accounting run_accounting;");
+		emitter().emit("accounting transition_accounting[%d];", Math.max(1, actorMachine.getTransitions().size()));
+		emitter().emit("");
+	}
+
+	/*
+	 * The ActionId of a transition as a single word, or its index if it has none.
+	 */
+	default String actionLabel(ActorMachine actorMachine, int transition) {
+		Optional<Annotation> annotation = Annotation.getAnnotationWithName("ActionId", actorMachine.getTransitions().get(transition).getAnnotations());
+		if (!annotation.isPresent()) {
+			return "transition_" + transition;
+		}
+		String actionTag = ((ExprLiteral) annotation.get().getParameters().get(0).getExpression()).getText();
+		return actionTag.replaceAll("^\"|\"$", "").replaceAll("[^A-Za-z0-9_.:$-]", "_");
+	}
+
+	default void emitTransitionCall(String name, int transition) {
+		if (accounting()) {
+			emitter().emit("{");
+			emitter().emit("\taccounting start = accounting_begin();");
+			emitter().emit("\t%s_transition_%d(self);", name, transition);
+			emitter().emit("\taccounting_end(&self->transition_accounting[%d], start);", transition);
+			emitter().emit("}");
+		} else {
+			emitter().emit("%s_transition_%d(self);", name, transition);
+		}
+	}
+
+	default long limit(String name, String attribute, IntegerSetting setting) {
+		Optional<ToolValueAttribute> value = backend().mapping().instance(name).getValueAttribute(attribute);
+		if (value.isPresent()) {
+			return backend().constants().intValue(value.get().getValue()).orElse(0);
+		}
+		return backend().context().getConfiguration().get(setting);
+	}
+
+	/*
+	 * An instance with a firing budget or a token quota may return before it blocks. The controller then stores the
+	 * state after the transition as its program counter, so the next visit continues from there.
+	 */
+	default boolean hasBudget(String name) {
+		return limit(name, FIRINGS_ATTRIBUTE, firingBudget) > 0 || limit(name, QUOTA_ATTRIBUTE, tokenQuota) > 0;
+	}
+
 	default void emitController(String name, ActorMachine actorMachine) {
 		List<? extends State> stateList = actorMachine.controller().getStateList();
 		Map<State, Integer> stateMap = stateMap(stateList);
 		Set<State> waitTargets = collectWaitTargets(stateList);
+		long firings = limit(name, FIRINGS_ATTRIBUTE, firingBudget);
+		long quota = limit(name, QUOTA_ATTRIBUTE, tokenQuota);
+		if (firings > 0 || quota > 0) {
+			waitTargets.addAll(collectExecTargets(stateList));
+		}
 
-		emitter().emit("_Bool %s_run(%1$s_state *self) {", name);
+		if (accounting()) {
+			emitter().emit("_Bool %s_run(%1$s_state *self) {", name);
+			emitter().emit("\taccounting start = accounting_begin();");
+			emitter().emit("\t_Bool progress = %s_controller(self);", name);
+			emitter().emit("\taccounting_end(&self->run_accounting, start);");
+			emitter().emit("\treturn progress;");
+			emitter().emit("}");
+			emitter().emit("");
+			emitter().emit("static _Bool %s_controller(%1$s_state *self) {", name);
+		} else {
+			emitter().emit("_Bool %s_run(%1$s_state *self) {", name);
+		}
 		emitter().increaseIndentation();
 
 		emitter().emit("_Bool progress = false;");
+		if (firings > 0) {
+			emitter().emit("unsigned firings = 0;");
+		}
+		if (quota > 0) {
+			actorMachine.getInputPorts().forEach(port -> emitter().emit("unsigned consumed_%s = 0;", port.getName()));
+		}
 		emitter().emit("");
 
 		jumpInto(waitTargets.stream().mapToInt(stateMap::get).collect(BitSet::new, BitSet::set, BitSet::or));
@@ -103,6 +304,32 @@ public interface Controllers {
 		emitter().emit("}");
 	}
 
+	/*
+	 * Fires the single transition of an SDF instance without testing any condition. The static schedule of its
+	 * region guarantees the tokens and the space. With cycle accounting every firing also counts as a visit of the
+	 * instance, since the controller is not entered.
+	 */
+	default void emitSdfFire(String name, ActorMachine actorMachine) {
+		emitter().emit("void %s_sdf_fire(%1$s_state *self) {", name);
+		emitter().increaseIndentation();
+		if (accounting()) {
+			emitter().emit("accounting run_start = accounting_begin();");
+		}
+		int i = 0;
+		for (Scope scope : actorMachine.getScopes()) {
+			if (!scope.isPersistent()) {
+				emitter().emit("%s_init_scope_%d(self);", name, i);
+			}
+			i = i + 1;
+		}
+		emitTransitionCall(name, 0);
+		if (accounting()) {
+			emitter().emit("accounting_end(&self->run_accounting, run_start);");
+		}
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+	}
+
 	default Map<State, Integer> stateMap(List<? extends State> stateList) {
 		int i = 0;
 		Map<State, Integer> result = new HashMap<>();
@@ -134,8 +361,27 @@ public interface Controllers {
 	}
 
 	default void emitInstruction(String name, Exec exec, Map<State, Integer> stateNumbers) {
-		emitter().emit("%s_transition_%d(self);", name, exec.transition());
+		emitTransitionCall(name, exec.transition());
 		emitter().emit("progress = true;");
+		List<String> exhausted = new ArrayList<>();
+		if (limit(name, FIRINGS_ATTRIBUTE, firingBudget) > 0) {
+			exhausted.add(String.format("++firings >= %d", limit(name, FIRINGS_ATTRIBUTE, firingBudget)));
+		}
+		long quota = limit(name, QUOTA_ATTRIBUTE, tokenQuota);
+		if (quota > 0) {
+			ActorMachine actorMachine = backend().mapping().actorMachine(backend().mapping().instance(name));
+			actorMachine.getTransitions().get(exec.transition()).getInputRates().forEach((port, rate) -> {
+				if (rate > 0) {
+					exhausted.add(String.format("(consumed_%s += %d) >= %d", port.getName(), rate, quota));
+				}
+			});
+		}
+		if (!exhausted.isEmpty()) {
+			emitter().emit("if (%s) {", String.join(" | ", exhausted));
+			emitter().emit("\tself->program_counter = %d;", stateNumbers.get(exec.target()));
+			emitter().emit("\treturn progress;");
+			emitter().emit("}");
+		}
 		emitter().emit("goto S%d;", stateNumbers.get(exec.target()));
 		emitter().emit("");
 	}
@@ -147,6 +393,17 @@ public interface Controllers {
 		emitter().emit("");
 	}
 
+	default Set<State> collectExecTargets(List<? extends State> stateList) {
+		Set<State> targets = new HashSet<>();
+		for (State state : stateList) {
+			Instruction i = state.getInstructions().get(0);
+			if (i.getKind() == InstructionKind.EXEC) {
+				i.forEachTarget(targets::add);
+			}
+		}
+		return targets;
+	}
+
 	default Set<State> collectWaitTargets(List<? extends State> stateList) {
 		Set<State> targets = new HashSet<>();
 		for (State state : stateList) {
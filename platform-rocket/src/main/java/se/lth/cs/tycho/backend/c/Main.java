@@ -3,6 +3,7 @@ package se.lth.cs.tycho.backend.c;
 import org.multij.Binding;
 import org.multij.BindingKind;
 import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.PlacementProfile;
 import se.lth.cs.tycho.compiler.CompilationTask;
 import se.lth.cs.tycho.compiler.Compiler;
 import se.lth.cs.tycho.compiler.SourceUnit;
@@ -10,9 +11,13 @@ import se.lth.cs.tycho.ir.Annotation;
 import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
 import se.lth.cs.tycho.ir.entity.am.ActorMachine;
 import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.network.Instance;
 import se.lth.cs.tycho.ir.util.ImmutableList;
 import se.lth.cs.tycho.reporting.CompilationException;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.IntegerSetting;
+import se.lth.cs.tycho.settings.OnOffSetting;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -32,6 +37,45 @@ public interface Main {
 	final boolean DONT_USE_FPU = false;
 	final int ICACHE_SETS = 64; // sets * 64 gives the actual size of the cache
 	final int DCACHE_SETS = 2048; // 2048 * 64 = 131072 ==> 128KB data memory
+	final int CACHE_BLOCK_BYTES = 64; // CacheBlockBytes of the generated configuration
+
+	OnOffSetting wfiWait = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "wfi-wait";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Lets idle cores sleep on wfi until another core rings their CLINT software interrupt.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	IntegerSetting idleSpins = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "idle-spins";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of passes without firings before an idle core sleeps, with wfi-wait enabled.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 16;
+		}
+	};
+
+	default boolean useWfi() {
+		return backend().context().getConfiguration().get(wfiWait);
+	}
 
 	default Emitter emitter() {
 		return backend().emitter();
@@ -50,6 +94,10 @@ public interface Main {
 		fifo();
 		actors();
 		config();
+		backend().fifoChisel().generateFifos();
+		placement();
+		buffers();
+		memoryMap();
 		main();
 	}
 
@@ -88,6 +136,7 @@ public interface Main {
 		}
 
 		includeSynchronization();
+		channels().ioRegionCode();
 		channels().inputActorCode();
 		channels().outputActorCode();
 		mainNetwork().main(task.getNetwork());
@@ -170,55 +219,178 @@ public interface Main {
 		}
 	}
 
+	/*
+	 * Every synchronization variable is aligned to a cache block and placed in the section of the core that reads
+	 * it, so no two cores write to the same block. The start and shutdown barrier is sense-reversing: a core arrives
+	 * by writing the new sense to its flag on core 0, and core 0 releases the cores by writing it to their release
+	 * flags. No flag is ever reset, so consecutive barriers cannot race.
+	 */
 	default void includeSynchronization(){
-		int numActors = backend().task().getNetwork().getInstances().size();
+		int numCores = backend().mapping().numberOfCores();
+		emitter().emit("");
+		emitter().emit("#define CORENUM " + numCores);
 		emitter().emit("");
-		emitter().emit("#define CORENUM " + numActors);
-		emitter().emit("static volatile uint32_t syncVector[CORENUM] = ");
-		String initVector = "{";
-		for(int i = 0; i < numActors; i++) {
-			if(i == numActors - 1)
-				initVector += "0";
-			else
-				initVector += "0,";
+		if (useWfi()) {
+			includeWakeup(numCores);
 		}
-		initVector += "};";
-		emitter().emit("\t" + initVector);
 
-		emitter().emit("volatile int syncSum = 0;");
-		for(int i = 1; i < numActors; i++){
-			emitter().emit("volatile int fire" + i + " SECTION(\".core" + i + ".data\");");
+		List<String> arrive = new ArrayList<>();
+		List<String> release = new ArrayList<>();
+		for (int i = 0; i < numCores; i++) {
+			emitter().emit("volatile uint32_t barrier_arrive%d CACHE_ALIGNED SECTION(\".core0.data\");", i);
+			emitter().emit("volatile uint32_t barrier_release%d CACHE_ALIGNED SECTION(\".core%1$d.data\");", i);
+			arrive.add("&barrier_arrive" + i);
+			release.add("&barrier_release" + i);
 		}
+		emitter().emit("static volatile uint32_t *const barrier_arrive[CORENUM] = { %s };", String.join(", ", arrive));
+		emitter().emit("static volatile uint32_t *const barrier_release[CORENUM] = { %s };", String.join(", ", release));
 
 		emitter().emit("");
 		emitter().emit("void syncCores(int cid, int nc){");
 		emitter().increaseIndentation();
-		emitter().emit("syncVector[cid] = 1;");
+		emitter().emit("uint32_t sense = !*barrier_release[cid];");
+		emitter().emit("__sync_synchronize();");
+		emitter().emit("if (cid == 0) {");
+		emitter().emit("\tfor (int i = 1; i < CORENUM; i++)");
+		emitter().emit(useWfi() ? "\t\twhile (*barrier_arrive[i] != sense) core_wfi(0);" : "\t\twhile (*barrier_arrive[i] != sense);");
+		emitter().emit("\t__sync_synchronize();");
+		emitter().emit("\t// Release the cores");
+		emitter().emit("\tfor (int i = 0; i < CORENUM; i++)");
+		emitter().emit("\t\t*barrier_release[i] = sense;");
+		if (useWfi()) {
+			emitter().emit("\t__sync_synchronize();");
+			emitter().emit("\tfor (int i = 1; i < CORENUM; i++)");
+			emitter().emit("\t\tCLINT_MSIP[i] = 1;");
+		}
+		emitter().emit("} else {");
+		emitter().emit("\t*barrier_arrive[cid] = sense;");
+		if (useWfi()) {
+			emitter().emit("\t__sync_synchronize();");
+			emitter().emit("\tCLINT_MSIP[0] = 1;");
+			emitter().emit("\twhile (*barrier_release[cid] != sense) core_wfi(cid);    // sleep until released");
+		} else {
+			emitter().emit("\twhile (*barrier_release[cid] != sense);    // wait until released");
+		}
+		emitter().emit("\t__sync_synchronize();");
+		emitter().emit("}");
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+		emitter().emit("");
+
+		includeTermination(numCores);
+	}
+
+	/*
+	 * An idle core announces that it is about to sleep, runs one more pass and then waits on wfi with only the
+	 * machine software interrupt enabled. A core that made progress fences its channel writes and rings the CLINT
+	 * msip register of every neighbouring core that has announced sleep. Either the sleeper sees the new tokens in
+	 * its last pass or the producer sees the announcement, so no wakeup is lost. The hart id of a core is its index.
+	 */
+	default void includeWakeup(int numCores) {
+		emitter().emit("#define IDLE_SPINS %d", backend().context().getConfiguration().get(idleSpins));
+		emitter().emit("#define MIP_MSIP (1 << 3)");
+		emitter().emit("#define CLINT_MSIP ((volatile uint32_t *) 0x2000000)");
+		emitter().emit("");
+		List<String> sleeping = new ArrayList<>();
+		for (int i = 0; i < numCores; i++) {
+			emitter().emit("volatile _Bool core_sleeping%d CACHE_ALIGNED SECTION(\".core%1$d.data\");", i);
+			sleeping.add("&core_sleeping" + i);
+		}
+		emitter().emit("static volatile _Bool *const core_sleeping[CORENUM] = { %s };", String.join(", ", sleeping));
+		emitter().emit("");
+
+		emitter().emit("static inline void enable_doorbell(void) {");
+		emitter().emit("\tasm volatile (\"csrs mie, %%0\" : : \"r\" (MIP_MSIP));");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Must follow a fence that publishes the tokens or the token the sleeper waits for");
+		emitter().emit("static inline void ring_doorbell(int core) {");
+		emitter().emit("\tif (*core_sleeping[core]) {");
+		emitter().emit("\t\tCLINT_MSIP[core] = 1;");
+		emitter().emit("\t}");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("static inline void announce_sleep(int cid) {");
+		emitter().emit("\t*core_sleeping[cid] = true;");
+		emitter().emit("\t__sync_synchronize();");
+		emitter().emit("}");
+		emitter().emit("");
+
+		emitter().emit("// Returns at once if the doorbell rang since it was last cleared");
+		emitter().emit("static inline void core_wfi(int cid) {");
+		emitter().emit("\tasm volatile (\"wfi\");");
+		emitter().emit("\tCLINT_MSIP[cid] = 0;");
+		emitter().emit("\t*core_sleeping[cid] = false;");
+		emitter().emit("}");
 		emitter().emit("");
-		emitter().emit("switch(cid){");
-		emitter().emit("\tcase 0:");
-		emitter().emit("\t\tfor(int i = 0; i < CORENUM; i++)");
-		emitter().emit("\t\t\twhile(!syncVector[i]);");
+	}
+
+	/*
+	 * Termination is detected with a token ring (Dijkstra, Feijen and van Gasteren). Core 0 starts a probe by
+	 * sending a white token to core 1; each core passes the token on only after a full pass without firings,
+	 * blackening it if it fired since it last held the token. A white token that returns to an idle, white core 0
+	 * proves that no channel state can change anymore. The token mailbox and the done flag of a core are placed in
+	 * its own section, so a core never polls another core while it is busy.
+	 */
+	default void includeTermination(int numCores) {
+		emitter().emit("#define TOKEN_NONE  0");
+		emitter().emit("#define TOKEN_WHITE 1");
+		emitter().emit("#define TOKEN_BLACK 2");
 		emitter().emit("");
-		emitter().emit("\t\tfor(int i = 0; i < CORENUM; i++)");
-		emitter().emit("\t\t\tsyncVector[i] = 0;");
+		for (int i = 0; i < numCores; i++) {
+			emitter().emit("volatile uint32_t term_token%d CACHE_ALIGNED SECTION(\".core%1$d.data\");", i);
+			emitter().emit("volatile _Bool network_done%d CACHE_ALIGNED SECTION(\".core%1$d.data\");", i);
+		}
 		emitter().emit("");
-		emitter().emit("\t\t// Fire the cores");
-		for(int i = 1; i < numActors; i++)
-			emitter().emit("\t\tfire" + i + " = 1;");
-		emitter().emit("\t\tbreak;");
-
-		for(int i = 1; i < numActors; i++) {
-			emitter().emit("\tcase " + i + ":");
-			emitter().emit("\t\twhile (fire" + i + " == 0);    // wait for the fire signal");
-			emitter().emit("\t\tfire" + i + " = 0;            // reset the signal");
-			emitter().emit("\t\tbreak;");
+
+		List<String> tokens = new ArrayList<>();
+		List<String> done = new ArrayList<>();
+		for (int i = 0; i < numCores; i++) {
+			tokens.add("&term_token" + i);
+			done.add("&network_done" + i);
 		}
+		emitter().emit("static volatile uint32_t *const term_token[CORENUM] = { %s };", String.join(", ", tokens));
+		emitter().emit("static volatile _Bool *const network_done[CORENUM] = { %s };", String.join(", ", done));
 		emitter().emit("");
-		emitter().emit("\tdefault:");
-		emitter().emit("\t\tbreak;");
+
+		emitter().emit("// Hands the token held by core cid to the next core in the ring");
+		emitter().emit("static inline void termination_forward(int cid, uint32_t color, _Bool *black) {");
+		emitter().increaseIndentation();
+		emitter().emit("*term_token[cid] = TOKEN_NONE;");
+		emitter().emit("__sync_synchronize();");
+		emitter().emit("*term_token[(cid + 1) %% CORENUM] = (*black || color == TOKEN_BLACK) ? TOKEN_BLACK : TOKEN_WHITE;");
+		emitter().emit("*black = false;");
+		if (useWfi()) {
+			emitter().emit("__sync_synchronize();");
+			emitter().emit("ring_doorbell((cid + 1) %% CORENUM);");
+		}
+		emitter().decreaseIndentation();
 		emitter().emit("}");
+		emitter().emit("");
 
+		emitter().emit("// Called by core 0 after each of its own idle passes");
+		emitter().emit("static inline void termination_probe(uint32_t token, _Bool *black, _Bool *probing) {");
+		emitter().increaseIndentation();
+		emitter().emit("if (!*probing) {");
+		emitter().emit("\t*probing = true;");
+		emitter().emit("\t*black = false;");
+		emitter().emit("\ttermination_forward(0, TOKEN_WHITE, black);");
+		emitter().emit("} else if (token == TOKEN_WHITE && !*black) {");
+		emitter().emit("\tfor (int i = 0; i < CORENUM; i++) {");
+		emitter().emit("\t\t*network_done[i] = true;");
+		emitter().emit("\t}");
+		if (useWfi()) {
+			emitter().emit("\t__sync_synchronize();");
+			emitter().emit("\tfor (int i = 1; i < CORENUM; i++) {");
+			emitter().emit("\t\tCLINT_MSIP[i] = 1;");
+			emitter().emit("\t}");
+		}
+		emitter().emit("} else if (token != TOKEN_NONE) {");
+		emitter().emit("\t*black = false;");
+		emitter().emit("\ttermination_forward(0, TOKEN_WHITE, black);");
+		emitter().emit("}");
 		emitter().decreaseIndentation();
 		emitter().emit("}");
 		emitter().emit("");
@@ -230,31 +402,26 @@ public interface Main {
 		emitter().open(mainTarget);
 		emitter().emit("//The following class should be copied into subsystem/config.scala");
 		emitter().emit("");
-		int actorNum = backend().task().getNetwork().getInstances().size();
+		int coreNum = backend().mapping().numberOfCores();
 		boolean hasAcc = false;
 		for(Instance instance : backend().task().getNetwork().getInstances()) {
-			GlobalEntityDecl actor = backend().task().getSourceUnits().stream()
-					.map(SourceUnit::getTree)
-					.filter(ns -> ns.getQID().equals(instance.getEntityName().getButLast()))
-					.flatMap(ns -> ns.getEntityDecls().stream())
-					.filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
-					.findFirst().get();
-			ActorMachine actorMachine = (ActorMachine) actor.getEntity();
+			ActorMachine actorMachine = backend().mapping().actorMachine(instance);
 			for (Transition transition : actorMachine.getTransitions()) {
-				Optional<Annotation> annotation = Annotation.getAnnotationWithName("ActionId", transition.getAnnotations());
 				hasAcc |= Annotation.hasAnnotationWithName(ACC_ANNOTATION, transition.getAnnotations());
 			}
 		}
 		String acc = hasAcc ? "WithAcc" : "";
 
-		emitter().emit("class With" + actorNum + "Core" + acc + "GeneratedBySB extends Config((site, here, up) => {");
+		emitter().emit("class With" + coreNum + "Core" + acc + "GeneratedBySB extends Config((site, here, up) => {");
 		emitter().emit("case RocketTilesKey => {");
 
-		backend().task().getNetwork().getInstances().forEach(this::coreConfigs);
+		emitter().increaseIndentation();
+		for(int core = 0; core < coreNum; core++)
+			coreConfigs(core);
 
 		String coreList = "List(core0";
 
-		for(int i = 1; i < actorNum; i++)
+		for(int i = 1; i < coreNum; i++)
 			coreList += ", core" + i;
 		coreList += ")";
 
@@ -280,40 +447,81 @@ public interface Main {
 
 
 
-		emitter().emit("class Tiny" + actorNum + "CoreSBGenConfig" + acc + " extends Config(");
+		emitter().emit("class Tiny" + coreNum + "CoreSBGenConfig" + acc + " extends Config(");
 		emitter().increaseIndentation();
 		emitter().emit("new WithNMemoryChannels(0) ++");
 		emitter().emit("new WithIncoherentTiles ++");
-		emitter().emit("new With" + actorNum + "Core" + acc + "GeneratedBySB ++");
+		emitter().emit("new With" + coreNum + "Core" + acc + "GeneratedBySB ++");
 		emitter().emit("new BaseConfig)");
 		emitter().close();
 	}
 
 
-	default void coreConfigs(Instance instance){
-		GlobalEntityDecl actor = backend().task().getSourceUnits().stream()
-				.map(SourceUnit::getTree)
-				.filter(ns -> ns.getQID().equals(instance.getEntityName().getButLast()))
-				.flatMap(ns -> ns.getEntityDecls().stream())
-				.filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
-				.findFirst().get();
-		ActorMachine actorMachine = (ActorMachine) actor.getEntity();
+	/*
+	 * The placement is written in the profile format with the core count, the costs that the placement was made
+	 * from and a core for every instance, so passing the file back as placement profile reproduces it. The work of
+	 * an instance is written as work rather than cycles, since it may be an estimate.
+	 */
+	default void placement() {
+		Mapping mapping = backend().mapping();
+		emitter().open(target().resolve("placement.txt"));
+		emitter().emit("# Placement of the actor instances on %d cores", mapping.numberOfCores());
+		Map<String, Long> network = new LinkedHashMap<>();
+		network.put(PlacementProfile.CORE_COUNT, (long) mapping.numberOfComputeCores());
+		network.put(PlacementProfile.CHANNEL_COST, mapping.channelCost());
+		emitter().emit("%s", PlacementProfile.networkRecord(network));
+		for (Instance instance : backend().task().getNetwork().getInstances()) {
+			Map<String, Long> values = new LinkedHashMap<>();
+			values.put(PlacementProfile.CORE, (long) mapping.coreOf(instance.getInstanceName()));
+			values.put(PlacementProfile.WORK, mapping.work(instance));
+			emitter().emit("%s", PlacementProfile.instanceRecord(instance.getInstanceName(), values));
+		}
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			Map<String, Long> values = new LinkedHashMap<>();
+			values.put("tokens", mapping.traffic(connection));
+			emitter().emit("%s", PlacementProfile.connectionRecord(mapping.endName(connection.getSource()), mapping.endName(connection.getTarget()), values));
+		}
+		emitter().close();
+	}
 
-		List<Instance> instances =  backend().task().getNetwork().getInstances();
-		ArrayList<String> actorNames = new ArrayList<String>();
-		for(Instance x : instances)
-			actorNames.add(x.getInstanceName());
+	/*
+	 * The token windows and the capacities of the channels, in the format of the placement profile.
+	 */
+	default void buffers() {
+		Channels channels = backend().channels();
+		if (!channels.autoSizing()) {
+			return;
+		}
+		Mapping mapping = backend().mapping();
+		emitter().open(target().resolve("buffers.txt"));
+		emitter().emit("# Channel capacities in tokens, 0 is BUFFER_SIZE");
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			Map<String, Long> values = new LinkedHashMap<>();
+			values.put("production", (long) channels.productionWindow(connection.getSource()));
+			values.put("consumption", (long) channels.consumptionWindow(connection.getTarget()));
+			values.put("capacity", (long) channels.connectionBufferSize(connection));
+			emitter().emit("%s", PlacementProfile.connectionRecord(mapping.endName(connection.getSource()), mapping.endName(connection.getTarget()), values));
+		}
+		emitter().close();
+	}
 
-		if(actorNames.indexOf(instance.getInstanceName()) == 0)
-			emitter().increaseIndentation();
+	default void memoryMap() {
+		emitter().open(target().resolve("memory_map.txt"));
+		backend().memory().memoryMap();
+		emitter().close();
+	}
 
-		emitter().emit("val core" + actorNames.indexOf(instance.getInstanceName()) + " = RocketTileParams(");
+	default void coreConfigs(int core){
+		emitter().emit("val core" + core + " = RocketTileParams(");
 		emitter().increaseIndentation();
 		emitter().emit("core = RocketCoreParams(");
 		emitter().increaseIndentation();
 		emitter().emit("useVM = false,");
 		if(DONT_USE_FPU)
 			emitter().emit("fpu = None,");
+		if (backend().controllers().event() != 0) {
+			emitter().emit("nPerfCounters = 1,");
+		}
 		emitter().emit("mulDiv = Some(MulDivParams(mulUnroll = 8))),");
 		emitter().decreaseIndentation();
 		emitter().emit("btb = None,");
@@ -333,34 +541,45 @@ public interface Main {
 		emitter().emit("nTLBEntries = 4,");
 		emitter().emit("nMSHRs = 0,");
 		emitter().emit("blockBytes = site(CacheBlockBytes),");
-		emitter().emit("scratch = Some(0x80000000L + (" + actorNames.indexOf(instance.getInstanceName()) + " << (log2Up(" + DCACHE_SETS + ") + 6))))),");
+		emitter().emit("scratch = Some(0x80000000L + (" + core + " << (log2Up(" + DCACHE_SETS + ") + 6))))),");
 		emitter().decreaseIndentation();
 
-		int numAcc = 0;
-		for (Transition transition : actorMachine.getTransitions()) {
-			Optional<Annotation> annotation = Annotation.getAnnotationWithName("ActionId", transition.getAnnotations());
-			if(Annotation.hasAnnotationWithName(ACC_ANNOTATION, transition.getAnnotations())){
-				if(numAcc > 3)
-					break;
-
-				String instanceName = instance.getInstanceName();
-
-				emitter().emit("rocc = Seq(RoCCParams(");
+		// Every accelerated instance has its own opcode, and the hardware fifos of the core take the last one
+		List<String> accelerators = new ArrayList<>();
+		List<String> generators = new ArrayList<>();
+		for (Instance instance : backend().mapping().instancesOnCore(core)) {
+			Integer opcode = backend().mapping().accOpcodes().get(instance.getInstanceName());
+			if (opcode != null) {
+				String accelerator = instance.getInstanceName() + "_acc_" + opcode;
+				accelerators.add("OpcodeSet.custom" + opcode);
+				generators.add("val " + accelerator + " = LazyModule(new Generated_" + instance.getInstanceName() + "_acc()(p))");
+				generators.add(accelerator);
+			}
+		}
+		if (backend().fifoChisel().hasFifos(core)) {
+			accelerators.add("OpcodeSet.custom" + Channels.FIFO_CUSTOM);
+			generators.add("val fifos_" + core + " = LazyModule(new " + backend().fifoChisel().className(core) + "()(p))");
+			generators.add("fifos_" + core);
+		}
+		if (!accelerators.isEmpty()) {
+			emitter().emit("rocc = Seq(");
+			emitter().increaseIndentation();
+			for (int i = 0; i < accelerators.size(); i++) {
+				emitter().emit("RoCCParams(");
 				emitter().increaseIndentation();
-				emitter().emit("opcodes = OpcodeSet.custom" + numAcc + ",");
+				emitter().emit("opcodes = " + accelerators.get(i) + ",");
 				emitter().emit("generator = (p: Parameters) => {");
 				emitter().increaseIndentation();
-				emitter().emit("val " + instanceName + "_acc_" + numAcc + " = LazyModule(new Generated_" + instanceName + "_acc()(p))" );
-				emitter().emit(instanceName + "_acc_" + numAcc + "})");
+				emitter().emit(generators.get(2 * i));
+				emitter().emit(generators.get(2 * i + 1) + "})" + (i + 1 < accelerators.size() ? "," : ""));
 				emitter().decreaseIndentation();
 				emitter().decreaseIndentation();
-				emitter().emit("),");
-
-				numAcc++;
 			}
+			emitter().decreaseIndentation();
+			emitter().emit("),");
 		}
 
-		emitter().emit("hartId = " + actorNames.indexOf(instance.getInstanceName()));
+		emitter().emit("hartId = " + core);
 
 		emitter().decreaseIndentation();
 		emitter().emit(")");
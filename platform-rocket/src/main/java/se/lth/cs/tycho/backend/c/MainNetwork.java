@@ -3,15 +3,19 @@ package se.lth.cs.tycho.backend.c;
 import org.multij.Binding;
 import org.multij.BindingKind;
 import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.PlacementProfile;
 import se.lth.cs.tycho.attribute.GlobalNames;
 import se.lth.cs.tycho.ir.Parameter;
 import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
 import se.lth.cs.tycho.ir.decl.VarDecl;
 import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
 import se.lth.cs.tycho.ir.expr.Expression;
 import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.network.Instance;
 import se.lth.cs.tycho.ir.network.Network;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.OnOffSetting;
 import se.lth.cs.tycho.type.Type;
 
 import java.util.*;
@@ -23,6 +27,27 @@ public interface MainNetwork {
 	@Binding(BindingKind.INJECTED)
 	Backend backend();
 
+	OnOffSetting readinessScheduling = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "readiness-scheduling";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+
+		@Override
+		public String getDescription() {
+			return "Only enters the controller of an instance after a neighbour has fired since the instance last blocked.";
+		}
+	};
+
+	default boolean useReadiness() {
+		return backend().context().getConfiguration().get(readinessScheduling);
+	}
+
 	default Emitter emitter() {
 		return backend().emitter();
 	}
@@ -55,20 +80,10 @@ public interface MainNetwork {
 
 		Map<Connection.End, String> connectionNames = new HashMap<>();
 		Map<Connection.End, String> connectionTypes = new HashMap<>();
-		Map<Connection.End, PortDecl> targetPorts = new LinkedHashMap<>();
-		Map<Connection.End, List<Connection.End>> srcToTgt = new HashMap<>();
+		Map<Connection.End, String> mirrorNames = new HashMap<>();
+		Map<Connection.End, PortDecl> targetPorts = targetPorts();
+		Map<Connection.End, List<Connection.End>> srcToTgt = new LinkedHashMap<>();
 
-		for (PortDecl outputPort : network.getOutputPorts()) {
-			//targetPorts.put(new Connection.End(Optional.empty(), outputPort.getName()), outputPort);
-		}
-		for (Instance inst : instances) {
-			GlobalEntityDecl entityDecl = globalNames().entityDecl(inst.getEntityName(), true);
-			Optional<String> instanceName = Optional.of(inst.getInstanceName());
-			for (PortDecl inputPort : entityDecl.getEntity().getInputPorts()) {
-				Connection.End tgt = new Connection.End(instanceName, inputPort.getName());
-				targetPorts.put(tgt, inputPort);
-			}
-		}
 		for (Connection connection : connections) {
 			Connection.End src = connection.getSource();
 			Connection.End tgt = connection.getTarget();
@@ -76,33 +91,45 @@ public interface MainNetwork {
 					.add(tgt);
 		}
 
-		// Defining the channels on the memory of corresponding cores
-		ArrayList<String> coreNames = new ArrayList<>(instances.size());
-		for (Instance core : instances){
-			coreNames.add(core.getInstanceName());
-		}
+		// Defining the channels on the memory of corresponding cores, a channel between two actors on the same
+		// core has both its buffer and its mirror in that core's section
+		Mapping mapping = backend().mapping();
+		Memory memory = backend().memory();
 		int i = 0;
 		for (Map.Entry<Connection.End, PortDecl> targetPort : targetPorts.entrySet()) {
-			Type tokenType = backend().types().declaredPortType(targetPort.getValue());
 			String typeSize = backend().channels().targetEndTypeSize(targetPort.getKey());
 			String channelName = "channel_" + i;
 
-			String sourceActorName = connections.get(i).getSource().getInstance().get();
-			String targetActorName = connections.get(i).getTarget().getInstance().get();
-			int sourceCoreNum = coreNames.indexOf(sourceActorName);
-			int targetCoreNum = coreNames.indexOf(targetActorName);
+			Connection connection = connections.stream()
+					.filter(c -> c.getTarget().equals(targetPort.getKey()))
+					.findFirst().get();
+			String sourceActorName = connection.getSource().getInstance().orElse(connection.getSource().getPort());
+			String targetActorName = connection.getTarget().getInstance().orElse(connection.getTarget().getPort());
+			int sourceCoreNum = mapping.coreOf(connection.getSource());
+			int targetCoreNum = mapping.coreOf(connection.getTarget());
 
 			connectionTypes.put(targetPort.getKey(), typeSize);
 			connectionNames.put(targetPort.getKey(), channelName);
-			emitter().emit("channel_%s %s SECTION(\".core%d.data\"); //%s -> %s", typeSize, channelName, targetCoreNum, sourceActorName, targetActorName);
-			emitter().emit("channel_%s_mirror %s_mirror SECTION(\".core%d.data\");", typeSize, channelName, sourceCoreNum);
+			emitter().emit("channel_%s %s %s; //%s -> %s", typeSize, channelName, memory.section(channelName, targetCoreNum), sourceActorName, targetActorName);
+			if (backend().channels().isBroadcast(connection.getSource())) {
+				int reader = srcToTgt.get(connection.getSource()).indexOf(targetPort.getKey());
+				mirrorNames.put(targetPort.getKey(), String.format("%s.readers[%d]", broadcastName(connection.getSource()), reader));
+			} else {
+				emitter().emit("channel_%s_mirror %s_mirror %s;", typeSize, channelName, memory.section(channelName + "_mirror", sourceCoreNum));
+				mirrorNames.put(targetPort.getKey(), channelName + "_mirror");
+			}
 			i = i + 1;
 		}
+		for (Connection.End source : srcToTgt.keySet()) {
+			if (backend().channels().isBroadcast(source)) {
+				emitter().emit("broadcast_%s %s %s;", backend().channels().sourceEndTypeSize(source), broadcastName(source), memory.section(broadcastName(source), mapping.coreOf(source)));
+			}
+		}
 
 		emitter().emit("");
 
 		for (Instance instance : instances) {
-			emitter().emit("static %s_state %1$s SECTION(\".core%d.data\");", instance.getInstanceName(), coreNames.indexOf(instance.getInstanceName()));
+			emitter().emit("static %s_state %1$s %s;", instance.getInstanceName(), memory.section(instance.getInstanceName(), mapping.coreOf(instance.getInstanceName())));
 		}
 
 		emitter().emit("");
@@ -130,17 +157,47 @@ public interface MainNetwork {
 				String channels = outgoing.stream().map(connectionNames::get).map(c -> "&"+c).collect(Collectors.joining(", "));
 				Connection.End source = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
 				String tokenType = backend().channels().sourceEndTypeSize(source);
-				emitter().emit("channel_list_%s %s_%s SECTION(\".core%d.data\")               = { %s };", tokenType, instance.getInstanceName(), port.getName(), coreNames.indexOf(instance.getInstanceName()), channels);
-				emitter().emit("channel_list_%s_mirror %s_%s_mirror SECTION(\".core%d.data\") = { %s_mirror };", tokenType, instance.getInstanceName(), port.getName(), coreNames.indexOf(instance.getInstanceName()), channels);
+				String list = instance.getInstanceName() + "_" + port.getName();
+				int core = mapping.coreOf(instance.getInstanceName());
+				if (backend().channels().isBroadcast(source)) {
+					channels = "&" + broadcastName(source);
+					emitter().emit("channel_list_%s %s %s = { %s };", tokenType, list, memory.section(list, core), channels);
+					emitter().emit("channel_list_%s_mirror %s_mirror %s = { %s };", tokenType, list, memory.section(list + "_mirror", core), channels);
+					continue;
+				}
+				String mirrors = outgoing.stream().map(mirrorNames::get).map(c -> "&"+c).collect(Collectors.joining(", "));
+				emitter().emit("channel_list_%s %s %s = { %s };", tokenType, list, memory.section(list, core), channels);
+				emitter().emit("channel_list_%s_mirror %s_mirror %s = { %s };", tokenType, list, memory.section(list + "_mirror", core), mirrors);
 			}
 
 			emitter().emit("");
 		}
-		i = 0;
-		emitter().emit("_Bool progress SECTION(\".core0.data\");");
-		for (Instance instance : instances)
-			emitter().emit("_Bool progress"+ i + " SECTION(\".core" + (i++) + ".data\") = true;");
+
+		for (PortDecl port : network.getInputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			List<Connection.End> outgoing = srcToTgt.getOrDefault(end, Collections.emptyList());
+			String channels = outgoing.stream().map(connectionNames::get).map(c -> "&"+c).collect(Collectors.joining(", "));
+			String mirrors = outgoing.stream().map(mirrorNames::get).map(c -> "&"+c).collect(Collectors.joining(", "));
+			String tokenType = backend().channels().sourceEndTypeSize(end);
+			String list = port.getName() + "_channels";
+			emitter().emit("channel_list_%s %s %s = { %s };", tokenType, list, memory.section(list, mapping.ioCore()), channels);
+			emitter().emit("channel_list_%s_mirror %s_mirror %s = { %s };", tokenType, list, memory.section(list + "_mirror", mapping.ioCore()), mirrors);
+		}
 		emitter().emit("");
+		networkPortStreams(network);
+
+		if (useReadiness()) {
+			readyMasks();
+		}
+		memory.scratchpadAsserts();
+
+		List<Sdf.Region> regions = backend().sdf().regions();
+		for (int r = 0; r < regions.size(); r++) {
+			sdfRegion(r, regions.get(r), connectionNames);
+		}
+		for (int m = 0; m < mapping.numberOfCores(); m++) {
+			coreRunLoop(network, m, mapping.instancesOnCore(m));
+		}
 
 		emitter().emit("void thread_entry(int cid, int nc){");
 		emitter().increaseIndentation();
@@ -154,11 +211,24 @@ public interface MainNetwork {
 		for (Map.Entry<Connection.End, PortDecl> targetPort : targetPorts.entrySet()) {
 			String typeSize = backend().channels().targetEndTypeSize(targetPort.getKey());
 			String channelName = "channel_" + i;
-			emitter().emit("channel_create_%s(&%s, &%s_mirror);", typeSize, channelName, channelName);
+			Connection.End source = connections.stream()
+					.filter(c -> c.getTarget().equals(targetPort.getKey()))
+					.findFirst().get().getSource();
+			if (backend().channels().isBroadcast(source)) {
+				emitter().emit("channel_create_%s(&%s, &%s);", typeSize, channelName, broadcastName(source));
+			} else {
+				emitter().emit("channel_create_%s(&%s, &%s_mirror);", typeSize, channelName, channelName);
+			}
 
 			i = i + 1;
 		}
 
+		for (Connection.End source : srcToTgt.keySet()) {
+			if (backend().channels().isBroadcast(source)) {
+				emitter().emit("broadcast_create_%s(&%s);", backend().channels().sourceEndTypeSize(source), broadcastName(source));
+			}
+		}
+
 		emitter().emit("");
 
 		for (Instance instance : instances) {
@@ -186,7 +256,7 @@ public interface MainNetwork {
 			for (PortDecl port : entityDecl.getEntity().getInputPorts()) {
 				Connection.End end = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
 				initParameters.add("&"+connectionNames.get(end)); // Input channels
-				initParameters.add("&"+connectionNames.get(end)+"_mirror"); // Mirror of input channels
+				initParameters.add("&"+mirrorNames.get(end)); // Mirror of input channels
 			}
 			for (PortDecl port : entityDecl.getEntity().getOutputPorts()) {
 				Connection.End end = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
@@ -206,67 +276,41 @@ public interface MainNetwork {
 		emitter().emit("}");
 		emitter().emit("");
 
-		String progressOR = "";
-		int argi = 1;
-		for (PortDecl port : network.getInputPorts()) {
-			Connection.End end = new Connection.End(Optional.empty(), port.getName());
-			List<Connection.End> outgoing = srcToTgt.getOrDefault(end, Collections.emptyList());
-			String channels = outgoing.stream().map(connectionNames::get).collect(Collectors.joining(", "));
-			emitter().emit("FILE *%s_input_file = fopen(argv[%d], \"r\");", port.getName(), argi);
-			String tokenType = backend().channels().sourceEndTypeSize(new Connection.End(Optional.empty(), port.getName()));
-			emitter().emit("channel_list_%s %s_channels = { &%s };", tokenType, port.getName(), channels);
-			String type = backend().channels().sourceEndTypeSize(end);
-			emitter().emit("input_actor_%s *%s_input_actor = input_actor_create_%1$s(%2$s_input_file, %2$s_channels);", type, port.getName());
-			emitter().emit("");
-			argi = argi + 1;
+		if (backend().main().useWfi()) {
+			emitter().emit("enable_doorbell();");
 		}
-		for (PortDecl port : network.getOutputPorts()) {
-			Connection.End end = new Connection.End(Optional.empty(), port.getName());
-			String channel = connectionNames.get(end);
-			emitter().emit("FILE *%s_output_file = fopen(argv[%d], \"w\");", port.getName(), argi);
-			String type = backend().channels().targetEndTypeSize(end);
-			emitter().emit("output_actor_%s *%s_output_actor = output_actor_create_%1$s(%2$s_output_file, &%s);", type, port.getName(), channel);
-			emitter().emit("");
-			argi = argi + 1;
+		if (backend().controllers().event() != 0) {
+			emitter().emit("asm volatile (\"csrw mhpmevent3, %%0\" : : \"r\" (ACCOUNTING_EVENT));");
 		}
-
-		emitter().emit("syncCores(cid, nc);"); // only if synchronization is included in Main.java
-		emitter().emit("do {");
-		emitter().increaseIndentation();
+		emitter().emit("syncCores(cid, nc); // start barrier");
 		emitter().emit("switch(cid){");
 		emitter().increaseIndentation();
-		int m = 0;
-		for (PortDecl inputPort : network.getInputPorts()) {
-			emitter().emit("progress = input_actor_run_%s(%s_input_actor);", backend().channels().sourceEndTypeSize(new Connection.End(Optional.empty(), inputPort.getName())), inputPort.getName());
-		}
-		for (Instance instance : instances) {
-
-			emitter().emit("case " + m + ":");
+		for (int m = 0; m < mapping.numberOfCores(); m++) {
+			emitter().emit("case %d: {", m);
 			emitter().increaseIndentation();
-			emitter().emit("progress%d = %s_run(&%2$s);", m, instance.getInstanceName());
-			emitter().decreaseIndentation();
+			if (m == mapping.ioCore()) {
+				ioCore(network, connectionNames);
+			} else {
+				emitter().emit("run_core_%d();", m);
+			}
 			emitter().emit("break;");
-
-			m++;
-			if(m < instances.size())
-				progressOR += "progress" + (m-1) + " | ";
-			else
-				progressOR += "progress" + (m-1) + ";";
-		}
-		for (PortDecl outputPort : network.getOutputPorts()) {
-			emitter().emit("progress = output_actor_run_%s(%s_output_actor);", backend().channels().targetEndTypeSize(new Connection.End(Optional.empty(), outputPort.getName())), outputPort.getName());
+			emitter().decreaseIndentation();
+			emitter().emit("}");
 		}
 		emitter().decreaseIndentation();
 		emitter().emit("}");
-		emitter().decreaseIndentation();
-		emitter().emit("syncCores(cid, nc);");
-		emitter().emit("progress = " + progressOR);
-		emitter().emit("} while (progress);");
+		emitter().emit("syncCores(cid, nc); // shutdown barrier");
 		emitter().emit("");
 
 		emitter().emit("if(cid == 0){");
 		emitter().increaseIndentation();
 
+		if (backend().channels().statistics()) {
+			channelStatistics(connectionNames, mirrorNames);
+		}
+		if (backend().controllers().accounting()) {
+			cycleAccounting();
+		}
 		for (Instance instance : instances) {
 			emitter().emit("%s_free_actor(&%1$s);", instance.getInstanceName());
 		}
@@ -278,36 +322,474 @@ public interface MainNetwork {
 		}
 
 
-		for (PortDecl port : network.getInputPorts()) {
-			emitter().emit("fclose(%s_input_file);", port.getName());
+		emitter().emit("");
+		emitter().emit("free_global_variables();");
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+		emitter().emit("");
+		emitter().emit("int main(){");
+		emitter().increaseIndentation();
+		emitter().emit("return 0;");
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+		emitter().emit("");
+	}
+
+	/*
+	 * The statistics of the channels are printed as connection records of the placement profile, so that a run with
+	 * statistics can be passed back as profile.
+	 */
+	default void channelStatistics(Map<Connection.End, String> connectionNames, Map<Connection.End, String> mirrorNames) {
+		Mapping mapping = backend().mapping();
+		emitter().emit("printf(\"# Channel statistics, with the occupancy in %d buckets of the capacity\\n\");", Channels.OCCUPANCY_BUCKETS);
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			if (!backend().channels().hasStatistics(connection)) {
+				continue;
+			}
+			String channel = connectionNames.get(connection.getTarget());
+			StringBuilder format = new StringBuilder();
+			List<String> values = new ArrayList<>();
+			format.append(String.format("%s %s %s", PlacementProfile.CONNECTION, mapping.endName(connection.getSource()), mapping.endName(connection.getTarget())));
+			format.append(" tokens %lu peak %lu empty_stalls %lu full_stalls %lu");
+			values.add(channel + ".stats.tokens");
+			values.add(channel + ".stats.peak");
+			values.add(channel + ".stats.empty_stalls");
+			values.add(mirrorNames.get(connection.getTarget()) + ".full_stalls");
+			for (int bucket = 0; bucket < Channels.OCCUPANCY_BUCKETS; bucket++) {
+				format.append(String.format(" occupancy_%d %%lu", bucket));
+				values.add(String.format("%s.stats.occupancy[%d]", channel, bucket));
+			}
+			emitter().emit("%s", String.format("printf(\"%s\\n\", %s);", format, values.stream()
+					.map(value -> "(unsigned long) " + value)
+					.collect(Collectors.joining(", "))));
 		}
+		emitter().emit("");
+	}
 
-		for (PortDecl port : network.getOutputPorts()) {
-			emitter().emit("fclose(%s_output_file);", port.getName());
+	/*
+	 * The accounting of the instances is printed per core as instance records of the placement profile, where the
+	 * cycles of an instance are those of its controller including its transitions. The transitions are listed as
+	 * comments under their instance, labelled with their ActionId.
+	 */
+	default void cycleAccounting() {
+		Mapping mapping = backend().mapping();
+		Controllers controllers = backend().controllers();
+		emitter().emit("{");
+		emitter().increaseIndentation();
+		emitter().emit("accounting sum;");
+		for (int core = 0; core < mapping.numberOfCores(); core++) {
+			emitter().emit("printf(\"# Cycle accounting of core %d\\n\");", core);
+			for (Instance instance : mapping.instancesOnCore(core)) {
+				String name = instance.getInstanceName();
+				ActorMachine actorMachine = mapping.actorMachine(instance);
+				emitter().emit("sum = accounting_sum(%s.transition_accounting, %d);", name, actorMachine.getTransitions().size());
+				accountingRecord(String.format("%s %s", PlacementProfile.INSTANCE, name), name + ".run_accounting", " visits %lu firings %lu transition_cycles %lu",
+						Arrays.asList(name + ".run_accounting.calls", "sum.calls", "sum.cycles"));
+				for (int t = 0; t < actorMachine.getTransitions().size(); t++) {
+					String counters = String.format("%s.transition_accounting[%d]", name, t);
+					accountingRecord("#\\t" + controllers.actionLabel(actorMachine, t), counters, " firings %lu",
+							Collections.singletonList(counters + ".calls"));
+				}
+			}
 		}
+		emitter().decreaseIndentation();
+		emitter().emit("}");
+		emitter().emit("");
+	}
 
-		for (PortDecl port : network.getInputPorts()) {
-			emitter().emit("input_actor_destroy_%s(%s_input_actor);", backend().channels().sourceEndTypeSize(new Connection.End(Optional.empty(), port.getName())), port.getName());
+	default void accountingRecord(String head, String counters, String tail, List<String> tailValues) {
+		StringBuilder format = new StringBuilder(head);
+		List<String> values = new ArrayList<>();
+		format.append(" cycles %lu instret %lu");
+		values.add(counters + ".cycles");
+		values.add(counters + ".instret");
+		if (backend().controllers().event() != 0) {
+			format.append(" events %lu");
+			values.add(counters + ".events");
 		}
+		format.append(tail);
+		values.addAll(tailValues);
+		emitter().emit("%s", String.format("printf(\"%s\\n\", %s);", format, String.join(", ", values)));
+	}
 
-		for (PortDecl port : network.getOutputPorts()) {
-			emitter().emit("output_actor_destroy_%s(%s_output_actor);", backend().channels().targetEndTypeSize(new Connection.End(Optional.empty(), port.getName())), port.getName());
+	/*
+	 * The ends that have a channel, which is named by the position of the end
+	 */
+	@Binding(BindingKind.LAZY)
+	default Map<Connection.End, PortDecl> targetPorts() {
+		Network network = backend().task().getNetwork();
+		Map<Connection.End, PortDecl> targetPorts = new LinkedHashMap<>();
+		for (PortDecl outputPort : network.getOutputPorts()) {
+			targetPorts.put(new Connection.End(Optional.empty(), outputPort.getName()), outputPort);
 		}
+		for (Instance inst : network.getInstances()) {
+			GlobalEntityDecl entityDecl = globalNames().entityDecl(inst.getEntityName(), true);
+			Optional<String> instanceName = Optional.of(inst.getInstanceName());
+			for (PortDecl inputPort : entityDecl.getEntity().getInputPorts()) {
+				Connection.End tgt = new Connection.End(instanceName, inputPort.getName());
+				targetPorts.put(tgt, inputPort);
+			}
+		}
+		return targetPorts;
+	}
+
+	default String channelName(Connection.End target) {
+		return "channel_" + new ArrayList<>(targetPorts().keySet()).indexOf(target);
+	}
+
+	default String broadcastName(Connection.End source) {
+		return "broadcast_" + source.getInstance().get() + "_" + source.getPort();
+	}
 
+	/*
+	 * With memory-io the ports are read from and written to regions in sections of their own, which the host places
+	 * and fills or drains. Otherwise they are files, named by the port unless a path is defined when compiling.
+	 */
+	default void networkPortStreams(Network network) {
+		List<PortDecl> ports = new ArrayList<>(network.getInputPorts());
+		ports.addAll(network.getOutputPorts());
+		for (PortDecl port : ports) {
+			Optional<Connection> connection = backend().channels().networkPortConnection(new Connection.End(Optional.empty(), port.getName()));
+			if (!connection.isPresent()) {
+				continue;
+			}
+			if (backend().channels().isMemoryIoPort(new Connection.End(Optional.empty(), port.getName()))) {
+				String tokenType = code().type(backend().channels().alignedConnectionTypes(connection.get()));
+				emitter().emit("union { io_region_%s region; char bytes[sizeof(io_region_%1$s) + IO_REGION_TOKENS_%s * sizeof(%1$s)]; } %2$s_region SECTION(\".io.%2$s\") = { .region = { .capacity = IO_REGION_TOKENS_%2$s } };", tokenType, port.getName());
+			} else {
+				emitter().emitRawLine(String.format("#ifndef PATH_%s\n#define PATH_%1$s \"%1$s\"\n#endif", port.getName()));
+			}
+		}
 		emitter().emit("");
-		emitter().emit("free_global_variables();");
+	}
+
+	/*
+	 * The input and output actors are created, run and destroyed by the core that serves the network ports.
+	 */
+	default void ioCore(Network network, Map<Connection.End, String> connectionNames) {
+		List<String> ioArguments = new ArrayList<>();
+		for (PortDecl port : network.getInputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			boolean memoryIo = backend().channels().isMemoryIoPort(end);
+			String type = backend().channels().sourceEndTypeSize(end);
+			String stream = port.getName() + "_input_file";
+			if (memoryIo) {
+				stream = "&" + port.getName() + "_region.region";
+			} else {
+				emitter().emit("FILE *%s = fopen(PATH_%s, \"r\");", stream, port.getName());
+			}
+			emitter().emit("input_actor_%s *%s_input_actor = input_actor_create_%1$s(%s, %2$s_channels, %2$s_channels_mirror);", type, port.getName(), stream);
+			ioArguments.add(port.getName() + "_input_actor");
+		}
+		for (PortDecl port : network.getOutputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			boolean memoryIo = backend().channels().isMemoryIoPort(end);
+			String type = backend().channels().targetEndTypeSize(end);
+			String channel = connectionNames.get(end);
+			String stream = port.getName() + "_output_file";
+			String window = "";
+			if (memoryIo) {
+				stream = "&" + port.getName() + "_region.region";
+			} else {
+				emitter().emit("FILE *%s = fopen(PATH_%s, \"w\");", stream, port.getName());
+				window = ", " + backend().channels().productionWindow(backend().channels().networkPortConnection(end).get().getSource());
+			}
+			emitter().emit("output_actor_%s *%s_output_actor = output_actor_create_%1$s(%s, &%s, &%4$s_mirror%s);", type, port.getName(), stream, channel, window);
+			ioArguments.add(port.getName() + "_output_actor");
+		}
+		emitter().emit("run_core_%d(%s);", backend().mapping().ioCore(), String.join(", ", ioArguments));
+		for (PortDecl port : network.getInputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			emitter().emit("input_actor_destroy_%s(%s_input_actor);", backend().channels().sourceEndTypeSize(end), port.getName());
+			if (!backend().channels().isMemoryIoPort(end)) {
+				emitter().emit("fclose(%s_input_file);", port.getName());
+			}
+		}
+		for (PortDecl port : network.getOutputPorts()) {
+			Connection.End end = new Connection.End(Optional.empty(), port.getName());
+			emitter().emit("output_actor_destroy_%s(%s_output_actor);", backend().channels().targetEndTypeSize(end), port.getName());
+			if (!backend().channels().isMemoryIoPort(end)) {
+				emitter().emit("fclose(%s_output_file);", port.getName());
+			}
+		}
+	}
+
+	/*
+	 * Fires the instances of an SDF region by their static schedule for as many periods as the channels on the border
+	 * of the region allow. Runs of firings of the same instance are emitted as loops.
+	 */
+	default void sdfRegion(int index, Sdf.Region region, Map<Connection.End, String> connectionNames) {
+		Sdf sdf = backend().sdf();
+		List<String> conditions = new ArrayList<>();
+		for (Connection connection : sdf.borderConnections(region)) {
+			String channel = connectionNames.get(connection.getTarget());
+			Optional<String> target = connection.getTarget().getInstance();
+			long tokens = sdf.borderTokens(region, connection);
+			if (target.isPresent() && region.contains(target.get())) {
+				if (tokens > 0) {
+					String typeSize = backend().channels().targetEndTypeSize(connection.getTarget());
+					conditions.add(String.format("channel_has_data_%s(&%s, %d)", typeSize, channel, tokens));
+				}
+			} else {
+				String source = connection.getSource().getInstance().get();
+				if (tokens > 0) {
+					String typeSize = backend().channels().sourceEndTypeSize(connection.getSource());
+					String condition = String.format("channel_has_space_%s(%s_%s_mirror, %d)", typeSize, source, connection.getSource().getPort(), tokens);
+					if (!conditions.contains(condition)) {
+						conditions.add(condition);
+					}
+				}
+			}
+		}
+		int core = backend().mapping().coreOf(region.getInstances().get(0).getInstanceName());
+		emitter().emit("static _Bool sdf_region_%d(void) SECTION(\".core%d.text\");", index, core);
+		emitter().emit("static _Bool sdf_region_%d(void) {", index);
+		emitter().increaseIndentation();
+		emitter().emit("_Bool fired = false;");
+		emitter().emit("while (%s) {", conditions.isEmpty() ? "!fired" : String.join(" && ", conditions));
+		emitter().increaseIndentation();
+		List<Instance> firings = region.firings();
+		int i = 0;
+		while (i < firings.size()) {
+			Instance instance = firings.get(i);
+			int run = 1;
+			while (i + run < firings.size() && firings.get(i + run).equals(instance)) {
+				run++;
+			}
+			if (run == 1) {
+				emitter().emit("%s_sdf_fire(&%1$s);", instance.getInstanceName());
+			} else {
+				emitter().emit("for (int i = 0; i < %d; i++) {", run);
+				emitter().emit("\t%s_sdf_fire(&%1$s);", instance.getInstanceName());
+				emitter().emit("}");
+			}
+			i += run;
+		}
+		emitter().emit("fired = true;");
 		emitter().decreaseIndentation();
 		emitter().emit("}");
+		emitter().emit("return fired;");
 		emitter().decreaseIndentation();
 		emitter().emit("}");
 		emitter().emit("");
-		emitter().emit("int main(){");
+	}
+
+	/*
+	 * With readiness scheduling, every core has a bit mask with one bit per instance on the core. The bit of an
+	 * instance is cleared before its controller is entered, and the controller only returns when the instance waits.
+	 * Whenever an actor fires, it sets the bits of the instances on the other ends of its channels, since they may
+	 * have gained tokens or space. A bit that is set after it was cleared is kept, so no firing is missed.
+	 */
+	default void readyMasks() {
+		Mapping mapping = backend().mapping();
+		for (int core = 0; core < mapping.numberOfCores(); core++) {
+			int instances = mapping.instancesOnCore(core).size();
+			if (instances > 0) {
+				List<String> words = new ArrayList<>();
+				for (int bit = 0; bit < instances; bit += 32) {
+					int bits = Math.min(32, instances - bit);
+					words.add(String.format("0x%xu", bits == 32 ? -1 : (1 << bits) - 1));
+				}
+				emitter().emit("volatile uint32_t ready_mask%d[%d] CACHE_ALIGNED SECTION(\".core%1$d.data\") = { %s };", core, words.size(), String.join(", ", words));
+			}
+		}
+		emitter().emit("");
+	}
+
+	default int readyBit(String instanceName) {
+		Mapping mapping = backend().mapping();
+		List<Instance> onCore = mapping.instancesOnCore(mapping.coreOf(instanceName));
+		for (int bit = 0; bit < onCore.size(); bit++) {
+			if (onCore.get(bit).getInstanceName().equals(instanceName)) {
+				return bit;
+			}
+		}
+		throw new IllegalArgumentException(instanceName);
+	}
+
+	/*
+	 * The ends on the other side of the channels of an instance
+	 */
+	default List<Connection.End> neighbourEnds(String instanceName) {
+		List<Connection.End> result = new ArrayList<>();
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			if (connection.getSource().getInstance().equals(Optional.of(instanceName))) {
+				result.add(connection.getTarget());
+			}
+			if (connection.getTarget().getInstance().equals(Optional.of(instanceName))) {
+				result.add(connection.getSource());
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Calls an actor and, with readiness scheduling, marks the instances at the given ends as ready if it fired
+	 */
+	default void emitRun(String run, List<Connection.End> notify) {
+		Set<String> ready = new LinkedHashSet<>();
+		for (Connection.End end : notify) {
+			end.getInstance().ifPresent(ready::add);
+		}
+		emitRunNotifying(run, ready);
+	}
+
+	default void emitRunNotifying(String run, Set<String> ready) {
+		if (!useReadiness() || ready.isEmpty()) {
+			emitter().emit("progress |= %s;", run);
+		} else {
+			emitter().emit("if (%s) {", run);
+			emitter().increaseIndentation();
+			emitter().emit("progress = true;");
+			for (String instance : ready) {
+				markReady(backend().mapping().coreOf(instance), readyBit(instance));
+			}
+			emitter().decreaseIndentation();
+			emitter().emit("}");
+		}
+	}
+
+	default void markReady(int core, int bit) {
+		emitter().emit("__atomic_fetch_or(&ready_mask%d[%d], 0x%xu, __ATOMIC_RELEASE);", core, bit / 32, 1 << (bit % 32));
+	}
+
+	/*
+	 * Each core fires its own actors until the termination protocol in Main.includeTermination has concluded that
+	 * the whole network is quiescent. Cores only interact through the channel counters and the termination token;
+	 * the only barriers are at start and shutdown in thread_entry.
+	 */
+	default void coreRunLoop(Network network, int core, List<Instance> coreInstances) {
+		boolean io = core == backend().mapping().ioCore();
+		List<String> parameters = new ArrayList<>();
+		if (io) {
+			for (PortDecl port : network.getInputPorts()) {
+				String type = backend().channels().sourceEndTypeSize(new Connection.End(Optional.empty(), port.getName()));
+				parameters.add(String.format("input_actor_%s *%s_input_actor", type, port.getName()));
+			}
+			for (PortDecl port : network.getOutputPorts()) {
+				String type = backend().channels().targetEndTypeSize(new Connection.End(Optional.empty(), port.getName()));
+				parameters.add(String.format("output_actor_%s *%s_output_actor", type, port.getName()));
+			}
+		}
+		String signature = String.format("static void run_core_%d(%s)", core, parameters.isEmpty() ? "void" : String.join(", ", parameters));
+		emitter().emit("%s SECTION(\".core%d.text\");", signature, core);
+		emitter().emit("%s {", signature);
 		emitter().increaseIndentation();
-		emitter().emit("return 0;");
+		boolean wfi = backend().main().useWfi();
+		emitter().emit("_Bool progress;");
+		emitter().emit("_Bool black = false;");
+		if (core == 0) {
+			emitter().emit("_Bool probing = false;");
+		}
+		if (wfi) {
+			emitter().emit("_Bool announced = false;");
+			emitter().emit("unsigned idle = 0;");
+		}
+		emitter().emit("do {");
+		emitter().increaseIndentation();
+		emitter().emit("uint32_t token = term_token%d;", core);
+		emitter().emit("if (token != TOKEN_NONE) {");
+		emitter().emit("\t__sync_synchronize();");
+		emitter().emit("}");
+		emitter().emit("progress = false;");
+		if (io) {
+			for (PortDecl port : network.getInputPorts()) {
+				Connection.End end = new Connection.End(Optional.empty(), port.getName());
+				String type = backend().channels().sourceEndTypeSize(end);
+				String run = String.format("input_actor_run_%s(%s_input_actor)", type, port.getName());
+				emitRun(run, network.getConnections().stream()
+						.filter(connection -> connection.getSource().equals(end))
+						.map(Connection::getTarget)
+						.collect(Collectors.toList()));
+			}
+		}
+		List<Sdf.Region> regions = backend().sdf().regions();
+		for (Instance instance : coreInstances) {
+			String name = instance.getInstanceName();
+			String run = String.format("%s_run(&%1$s)", name);
+			Optional<Sdf.Region> region = backend().sdf().regionOf(name);
+			if (region.isPresent()) {
+				if (region.get().getInstances().get(0).equals(instance)) {
+					emitRun(String.format("sdf_region_%d()", regions.indexOf(region.get())), backend().sdf().borderConnections(region.get()).stream()
+							.map(connection -> region.get().contains(connection.getSource().getInstance().orElse("")) ? connection.getTarget() : connection.getSource())
+							.collect(Collectors.toList()));
+				}
+			} else if (useReadiness()) {
+				int bit = readyBit(name);
+				emitter().emit("if (ready_mask%d[%d] & 0x%xu) {", core, bit / 32, 1 << (bit % 32));
+				emitter().increaseIndentation();
+				emitter().emit("__atomic_fetch_and(&ready_mask%d[%d], ~0x%xu, __ATOMIC_ACQUIRE);", core, bit / 32, 1 << (bit % 32));
+				Set<String> ready = new LinkedHashSet<>();
+				neighbourEnds(name).forEach(end -> end.getInstance().ifPresent(ready::add));
+				if (backend().controllers().hasBudget(name)) {
+					// it may have returned before it blocked
+					ready.add(name);
+				}
+				emitRunNotifying(run, ready);
+				emitter().decreaseIndentation();
+				emitter().emit("}");
+			} else {
+				emitRun(run, Collections.emptyList());
+			}
+		}
+		if (io) {
+			for (PortDecl port : network.getOutputPorts()) {
+				Connection.End end = new Connection.End(Optional.empty(), port.getName());
+				String type = backend().channels().targetEndTypeSize(end);
+				String run = String.format("output_actor_run_%s(%s_output_actor)", type, port.getName());
+				emitRun(run, network.getConnections().stream()
+						.filter(connection -> connection.getTarget().equals(end))
+						.map(Connection::getSource)
+						.collect(Collectors.toList()));
+			}
+		}
+		emitter().emit("if (progress) {");
+		emitter().emit("\tblack = true;");
+		if (wfi) {
+			emitter().emit("\tidle = 0;");
+			emitter().emit("\tif (announced) {");
+			emitter().emit("\t\tcore_sleeping%d = false;", core);
+			emitter().emit("\t\tannounced = false;");
+			emitter().emit("\t}");
+			Set<Integer> neighbours = backend().mapping().neighbourCores(core);
+			if (!neighbours.isEmpty()) {
+				emitter().emit("\t__sync_synchronize();");
+				for (int neighbour : neighbours) {
+					emitter().emit("\tring_doorbell(%d);", neighbour);
+				}
+			}
+		}
+		if (core == 0) {
+			emitter().emit("} else {");
+			emitter().emit("\ttermination_probe(token, &black, &probing);");
+		} else if (wfi) {
+			emitter().emit("} else {");
+			emitter().emit("\tif (token != TOKEN_NONE) {");
+			emitter().emit("\t\ttermination_forward(%d, token, &black);", core);
+			emitter().emit("\t}");
+		} else {
+			emitter().emit("} else if (token != TOKEN_NONE) {");
+			emitter().emit("\ttermination_forward(%d, token, &black);", core);
+		}
+		if (wfi) {
+			emitter().emit("\tif (announced) {");
+			emitter().emit("\t\tif (!network_done%d) {", core);
+			emitter().emit("\t\t\tcore_wfi(%d);", core);
+			emitter().emit("\t\t}");
+			emitter().emit("\t\tannounced = false;");
+			emitter().emit("\t\tidle = 0;");
+			emitter().emit("\t} else if (++idle >= IDLE_SPINS) {");
+			emitter().emit("\t\tannounce_sleep(%d);", core);
+			emitter().emit("\t\tannounced = true;");
+			emitter().emit("\t}");
+		}
+		emitter().emit("}");
+		emitter().decreaseIndentation();
+		emitter().emit("} while (!network_done%d);", core);
 		emitter().decreaseIndentation();
 		emitter().emit("}");
 		emitter().emit("");
 	}
-
-
 }
@@ -0,0 +1,336 @@
+package se.lth.cs.tycho.backend.c;
+
+import org.multij.Binding;
+import org.multij.BindingKind;
+import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.CorePartitioner;
+import se.lth.cs.tycho.backend.c.util.PlacementProfile;
+import se.lth.cs.tycho.ir.Annotation;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import se.lth.cs.tycho.reporting.CompilationException;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.IntegerSetting;
+import se.lth.cs.tycho.settings.OnOffSetting;
+import se.lth.cs.tycho.settings.PathSetting;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.multij.BindingKind.LAZY;
+
+@Module
+public interface Mapping {
+	@Binding(BindingKind.INJECTED)
+	Backend backend();
+
+	final String CORE_ATTRIBUTE = PlacementProfile.CORE;
+	final long CHANNEL_COST = 4; // estimated work of moving one token between two cores
+	final long PROFILED_CHANNEL_COST = 20; // cycles of moving one token between two cores
+
+	IntegerSetting coreCount = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "core-count";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of Rocket tiles that the actor instances are mapped to, 0 gives one tile per instance.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return 0;
+		}
+	};
+
+	PathSetting placementProfile = new PathSetting() {
+		@Override
+		public String getKey() {
+			return "placement-profile";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Profile with recorded firings, cycles and connection tokens that guides the placement of instances on cores.";
+		}
+
+		@Override
+		public Path defaultValue(Configuration configuration) {
+			return null;
+		}
+	};
+
+	OnOffSetting ioCore = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "io-core";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Runs the input and output actors of the network on a Rocket tile of their own.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	@Binding(LAZY)
+	default Optional<PlacementProfile> profile() {
+		Path path = backend().context().getConfiguration().get(placementProfile);
+		if (path == null) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(PlacementProfile.parse(Files.readAllLines(path)));
+		} catch (IOException e) {
+			throw CompilationException.from(e);
+		} catch (IllegalArgumentException e) {
+			throw new CompilationException(new Diagnostic(Diagnostic.Kind.ERROR, path + ": " + e.getMessage()));
+		}
+	}
+
+	/*
+	 * Instances are partitioned when a number of cores or a profile is given, otherwise every instance gets a core.
+	 */
+	default boolean isPartitioned() {
+		return backend().context().getConfiguration().get(coreCount) > 0 || profile().isPresent();
+	}
+
+	default Network network() {
+		return backend().task().getNetwork();
+	}
+
+	/*
+	 * The I/O core, if any, comes after the cores that run actor instances.
+	 */
+	default int numberOfCores() {
+		return numberOfComputeCores() + (hasIoCore() ? 1 : 0);
+	}
+
+	default boolean hasIoCore() {
+		return backend().context().getConfiguration().get(ioCore);
+	}
+
+	default int ioCore() {
+		return hasIoCore() ? numberOfComputeCores() : 0;
+	}
+
+	/*
+	 * The core count setting takes precedence over the core count of a profile.
+	 */
+	default int numberOfComputeCores() {
+		int instances = network().getInstances().size();
+		int cores = backend().context().getConfiguration().get(coreCount);
+		if (cores <= 0 && profile().isPresent()) {
+			cores = (int) profile().get().networkValue(PlacementProfile.CORE_COUNT).orElse(0);
+		}
+		if (cores <= 0 || cores > instances) {
+			cores = instances;
+		}
+		return Math.max(cores, 1);
+	}
+
+	@Binding(LAZY)
+	default Map<String, Integer> assignment() {
+		List<Instance> instances = network().getInstances();
+		Map<String, Integer> result = new LinkedHashMap<>();
+		if (!isPartitioned()) {
+			for (int i = 0; i < instances.size(); i++) {
+				result.put(instances.get(i).getInstanceName(), i);
+			}
+			return result;
+		}
+
+		List<String> names = instances.stream().map(Instance::getInstanceName).collect(Collectors.toList());
+		CorePartitioner partitioner = new CorePartitioner(instances.size(), numberOfComputeCores());
+		partitioner.setChannelCost(channelCost());
+		for (int i = 0; i < instances.size(); i++) {
+			partitioner.setWork(i, work(instances.get(i)));
+			OptionalLong pin = pinnedCore(instances.get(i));
+			if (pin.isPresent()) {
+				if (pin.getAsLong() < 0 || pin.getAsLong() >= numberOfComputeCores()) {
+					throw new CompilationException(new Diagnostic(Diagnostic.Kind.ERROR, String.format("Instance %s is pinned to core %d, but there are only %d cores for the instances.", names.get(i), pin.getAsLong(), numberOfComputeCores())));
+				}
+				partitioner.pin(i, (int) pin.getAsLong());
+			}
+		}
+		for (Connection connection : network().getConnections()) {
+			if (connection.getSource().getInstance().isPresent() && connection.getTarget().getInstance().isPresent()) {
+				int source = names.indexOf(connection.getSource().getInstance().get());
+				int target = names.indexOf(connection.getTarget().getInstance().get());
+				partitioner.addTraffic(source, target, traffic(connection));
+			}
+		}
+		int[] cores = partitioner.partition();
+		for (int i = 0; i < instances.size(); i++) {
+			result.put(names.get(i), cores[i]);
+		}
+		return result;
+	}
+
+	default long channelCost() {
+		if (profile().isPresent()) {
+			return profile().get().networkValue(PlacementProfile.CHANNEL_COST).orElse(PROFILED_CHANNEL_COST);
+		} else {
+			return CHANNEL_COST;
+		}
+	}
+
+	default int coreOf(String instanceName) {
+		return assignment().get(instanceName);
+	}
+
+	/*
+	 * The network ports are served by the input and output actors, which run on the I/O core.
+	 */
+	default int coreOf(Connection.End end) {
+		return end.getInstance().map(this::coreOf).orElse(ioCore());
+	}
+
+	default List<Instance> instancesOnCore(int core) {
+		return network().getInstances().stream()
+				.filter(instance -> coreOf(instance.getInstanceName()) == core)
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * Every instance with accelerated transitions drives its own RoCC accelerator, on a custom opcode of its core in
+	 * network order. The hardware fifos of a core take the last opcode.
+	 */
+	@Binding(LAZY)
+	default Map<String, Integer> accOpcodes() {
+		Map<String, Integer> result = new HashMap<>();
+		for (int core = 0; core < numberOfCores(); core++) {
+			List<Integer> free = new ArrayList<>(Arrays.asList(0, 1, 2, 3));
+			if (backend().fifoChisel().hasFifos(core)) {
+				free.remove(Integer.valueOf(Channels.FIFO_CUSTOM));
+			}
+			int next = 0;
+			for (Instance instance : instancesOnCore(core)) {
+				if (!isAccelerated(instance)) {
+					continue;
+				}
+				if (next == free.size()) {
+					throw new CompilationException(new Diagnostic(Diagnostic.Kind.ERROR, String.format("Core %d has only %d free custom opcodes for the accelerators of its instances, %s needs to be placed on another core.", core, free.size(), instance.getInstanceName())));
+				}
+				result.put(instance.getInstanceName(), free.get(next++));
+			}
+		}
+		return result;
+	}
+
+	default boolean isAccelerated(Instance instance) {
+		return actorMachine(instance).getTransitions().stream()
+				.anyMatch(transition -> Annotation.hasAnnotationWithName(Main.ACC_ANNOTATION, transition.getAnnotations()));
+	}
+
+	/*
+	 * The other cores that a core shares a channel with, in either direction.
+	 */
+	default Set<Integer> neighbourCores(int core) {
+		Set<Integer> result = new TreeSet<>();
+		for (Connection connection : network().getConnections()) {
+			int source = coreOf(connection.getSource());
+			int target = coreOf(connection.getTarget());
+			if (source == core && target != core) {
+				result.add(target);
+			} else if (target == core && source != core) {
+				result.add(source);
+			}
+		}
+		return result;
+	}
+
+	default Instance instance(String instanceName) {
+		return network().getInstances().stream()
+				.filter(instance -> instance.getInstanceName().equals(instanceName))
+				.findFirst().get();
+	}
+
+	default OptionalLong pinnedCore(Instance instance) {
+		Optional<ToolValueAttribute> attribute = instance.getValueAttribute(CORE_ATTRIBUTE);
+		if (attribute.isPresent()) {
+			return backend().constants().intValue(attribute.get().getValue());
+		} else if (profile().isPresent()) {
+			return profile().get().instanceValue(instance.getInstanceName(), CORE_ATTRIBUTE);
+		} else {
+			return OptionalLong.empty();
+		}
+	}
+
+	default String endName(Connection.End end) {
+		return end.getInstance().map(instance -> instance + "." + end.getPort()).orElse(end.getPort());
+	}
+
+	default ActorMachine actorMachine(Instance instance) {
+		return (ActorMachine) backend().globalNames().entityDecl(instance.getEntityName(), true).getEntity();
+	}
+
+	/*
+	 * The work of an instance is the work written by an earlier placement or the recorded number of cycles if there
+	 * is a profile. Otherwise it is estimated from the size of its transitions and the number of conditions that its
+	 * controller evaluates, scaled by the recorded number of firings if available.
+	 */
+	default long work(Instance instance) {
+		if (profile().isPresent()) {
+			OptionalLong work = profile().get().instanceValue(instance.getInstanceName(), PlacementProfile.WORK);
+			if (work.isPresent()) {
+				return work.getAsLong();
+			}
+			OptionalLong cycles = profile().get().instanceValue(instance.getInstanceName(), "cycles");
+			if (cycles.isPresent()) {
+				return cycles.getAsLong();
+			}
+			OptionalLong firings = profile().get().instanceValue(instance.getInstanceName(), "firings");
+			if (firings.isPresent()) {
+				return firings.getAsLong() * staticWork(instance);
+			}
+		}
+		return staticWork(instance);
+	}
+
+	default long staticWork(Instance instance) {
+		ActorMachine actorMachine = actorMachine(instance);
+		long size = 0;
+		for (Transition transition : actorMachine.getTransitions()) {
+			size += transition.walk().count();
+		}
+		return size + actorMachine.getConditions().size();
+	}
+
+	/*
+	 * The traffic on a connection is the recorded number of tokens if there is a profile. Otherwise it is estimated
+	 * as the largest number of tokens that one transition of the producer writes to the port, or one token for the
+	 * input ports of the network.
+	 */
+	default long traffic(Connection connection) {
+		if (profile().isPresent()) {
+			return profile().get()
+					.connectionValue(endName(connection.getSource()), endName(connection.getTarget()), "tokens")
+					.orElse(0);
+		}
+		if (!connection.getSource().getInstance().isPresent()) {
+			return 1;
+		}
+		Instance source = instance(connection.getSource().getInstance().get());
+		String port = connection.getSource().getPort();
+		return actorMachine(source).getTransitions().stream()
+				.flatMap(transition -> transition.getOutputRates().entrySet().stream())
+				.filter(rate -> rate.getKey().getName().equals(port))
+				.mapToLong(Map.Entry::getValue)
+				.max().orElse(1);
+	}
+}
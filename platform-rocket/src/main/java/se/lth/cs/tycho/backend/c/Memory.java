@@ -0,0 +1,286 @@
+package se.lth.cs.tycho.backend.c;
+
+import org.multij.Binding;
+import org.multij.BindingKind;
+import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.ScratchpadPlan;
+import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Scope;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.IntegerSetting;
+import se.lth.cs.tycho.type.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.multij.BindingKind.LAZY;
+
+/*
+ * Places the channels and the actor states in the data scratchpads of the cores. The sizes are estimated from the
+ * types, and the generated code checks with _Static_assert that what is placed in a scratchpad really fits. Channel
+ * buffers that do not fit are placed in shared memory, and hardware fifos only take a placeholder.
+ */
+@Module
+public interface Memory {
+	@Binding(BindingKind.INJECTED)
+	Backend backend();
+
+	final long POINTER_BYTES = 8;
+
+	IntegerSetting scratchpadBytes = new IntegerSetting() {
+		@Override
+		public String getKey() {
+			return "scratchpad-bytes";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Number of bytes of the data scratchpad of a Rocket tile that the channels and actor states may use.";
+		}
+
+		@Override
+		public Integer defaultValue(Configuration configuration) {
+			return Main.DCACHE_SETS * Main.CACHE_BLOCK_BYTES;
+		}
+	};
+
+	@Binding(LAZY)
+	default ScratchpadPlan plan() {
+		ScratchpadPlan plan = new ScratchpadPlan(backend().context().getConfiguration().get(scratchpadBytes));
+		Mapping mapping = backend().mapping();
+		Channels channels = backend().channels();
+		MainNetwork mainNetwork = backend().mainNetwork();
+		for (int core = 0; core < mapping.numberOfCores(); core++) {
+			for (Map.Entry<String, Long> object : fixedObjects(core).entrySet()) {
+				plan.add(core, object.getKey(), object.getValue(), false);
+			}
+		}
+		for (Connection.End target : mainNetwork.targetPorts().keySet()) {
+			Connection connection = connection(target);
+			long tokenBytes = tokenBytes(channels.alignedConnectionTypes(connection));
+			if (channels.isBroadcast(connection.getSource())) {
+				plan.add(mapping.coreOf(target), mainNetwork.channelName(target), Main.CACHE_BLOCK_BYTES, false);
+			} else if (channels.isHardwareFifo(connection)) {
+				// the tokens are in the queue of the accelerator
+				plan.add(mapping.coreOf(target), mainNetwork.channelName(target), 1, false);
+				plan.add(mapping.coreOf(connection.getSource()), mainNetwork.channelName(target) + "_mirror", 1, false);
+			} else {
+				long buffer = blocks(tokenBytes * capacity(channels.connectionBufferSize(connection)));
+				long statistics = channels.statistics() ? blocks((3 + Channels.OCCUPANCY_BUCKETS) * POINTER_BYTES) : 0;
+				long stalls = channels.statistics() ? Main.CACHE_BLOCK_BYTES : 0;
+				plan.add(mapping.coreOf(target), mainNetwork.channelName(target), 2 * Main.CACHE_BLOCK_BYTES + buffer + statistics, true);
+				plan.add(mapping.coreOf(connection.getSource()), mainNetwork.channelName(target) + "_mirror", 2 * Main.CACHE_BLOCK_BYTES + stalls, false);
+			}
+		}
+		backend().task().getNetwork().getConnections().stream()
+				.map(Connection::getSource)
+				.distinct()
+				.filter(channels::isBroadcast)
+				.forEach(source -> {
+					List<Connection> outgoing = channels.outgoing(source);
+					long tokenBytes = tokenBytes(channels.alignedConnectionTypes(outgoing.get(0)));
+					long buffer = blocks(tokenBytes * capacity(channels.broadcastBufferSize(source)));
+					plan.add(mapping.coreOf(source), mainNetwork.broadcastName(source), (1 + outgoing.size()) * Main.CACHE_BLOCK_BYTES + buffer, true);
+				});
+		for (Instance instance : backend().task().getNetwork().getInstances()) {
+			plan.add(mapping.coreOf(instance.getInstanceName()), instance.getInstanceName(), stateBytes(mapping.actorMachine(instance)), false);
+			for (PortDecl port : mapping.actorMachine(instance).getOutputPorts()) {
+				Connection.End source = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
+				long bytes = channels.isBroadcast(source) ? POINTER_BYTES : channelListBytes(source);
+				plan.add(mapping.coreOf(instance.getInstanceName()), instance.getInstanceName() + "_" + port.getName(), bytes, false);
+				plan.add(mapping.coreOf(instance.getInstanceName()), instance.getInstanceName() + "_" + port.getName() + "_mirror", bytes, false);
+			}
+		}
+		for (PortDecl port : backend().task().getNetwork().getInputPorts()) {
+			long bytes = channelListBytes(new Connection.End(Optional.empty(), port.getName()));
+			plan.add(mapping.ioCore(), port.getName() + "_channels", bytes, false);
+			plan.add(mapping.ioCore(), port.getName() + "_channels_mirror", bytes, false);
+		}
+		plan.plan();
+
+		for (int core = 0; core < mapping.numberOfCores(); core++) {
+			for (String object : plan.objects(core)) {
+				if (plan.isSpilled(object)) {
+					report(Diagnostic.Kind.WARNING, String.format("%s (%d bytes) does not fit the scratchpad of core %d and is placed in shared memory.", object, plan.bytes(object), core));
+				}
+			}
+			if (!plan.fits(core)) {
+				report(Diagnostic.Kind.WARNING, String.format("The data of core %d needs %d bytes even with its channel buffers in shared memory, which does not fit its scratchpad of %d bytes.", core, plan.used(core), plan.capacity()));
+			}
+		}
+		return plan;
+	}
+
+	/*
+	 * The barrier, termination and sleep flags and the readiness masks of a core, which are declared with a fixed,
+	 * cache aligned size and are never placed in shared memory
+	 */
+	default Map<String, Long> fixedObjects(int core) {
+		Mapping mapping = backend().mapping();
+		Map<String, Long> objects = new LinkedHashMap<>();
+		if (core == 0) {
+			for (int i = 0; i < mapping.numberOfCores(); i++) {
+				objects.put("barrier_arrive" + i, (long) Main.CACHE_BLOCK_BYTES);
+			}
+		}
+		objects.put("barrier_release" + core, (long) Main.CACHE_BLOCK_BYTES);
+		objects.put("term_token" + core, (long) Main.CACHE_BLOCK_BYTES);
+		objects.put("network_done" + core, (long) Main.CACHE_BLOCK_BYTES);
+		if (backend().main().useWfi()) {
+			objects.put("core_sleeping" + core, (long) Main.CACHE_BLOCK_BYTES);
+		}
+		int instances = mapping.instancesOnCore(core).size();
+		if (backend().mainNetwork().useReadiness() && instances > 0) {
+			objects.put("ready_mask" + core, blocks((instances + 31) / 32 * 4));
+		}
+		return objects;
+	}
+
+	/*
+	 * A channel list holds a pointer to every channel of the source
+	 */
+	default long channelListBytes(Connection.End source) {
+		return POINTER_BYTES * backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> connection.getSource().equals(source))
+				.count();
+	}
+
+	default Connection connection(Connection.End target) {
+		return backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> connection.getTarget().equals(target))
+				.findFirst().get();
+	}
+
+	default long capacity(int bufferSize) {
+		return bufferSize == 0 ? Channels.DEFAULT_BUFFER_SIZE : bufferSize;
+	}
+
+	default long blocks(long bytes) {
+		return (bytes + Main.CACHE_BLOCK_BYTES - 1) / Main.CACHE_BLOCK_BYTES * Main.CACHE_BLOCK_BYTES;
+	}
+
+	default void report(Diagnostic.Kind kind, String message) {
+		backend().context().getReporter().report(new Diagnostic(kind, message));
+	}
+
+	/*
+	 * The section of a channel or an actor state
+	 */
+	default String section(String object, int core) {
+		if (plan().isSpilled(object)) {
+			return "SECTION(\".data\")";
+		} else {
+			return String.format("SECTION(\".core%d.data\")", core);
+		}
+	}
+
+	/*
+	 * The compiler checks the estimate of every core. The fixed objects are counted with their aligned size, which their
+	 * sizeof does not include, and some of them are declared in another file.
+	 */
+	default void scratchpadAsserts() {
+		ScratchpadPlan plan = plan();
+		for (int core = 0; core < backend().mapping().numberOfCores(); core++) {
+			Map<String, Long> fixed = fixedObjects(core);
+			List<String> sizes = new ArrayList<>();
+			for (String object : plan.objects(core)) {
+				if (fixed.containsKey(object)) {
+					sizes.add(Long.toString(fixed.get(object)));
+				} else if (!plan.isSpilled(object)) {
+					sizes.add("sizeof(" + object + ")");
+				}
+			}
+			if (!sizes.isEmpty()) {
+				backend().emitter().emit("_Static_assert(%s <= %d, \"The data of core %d does not fit its scratchpad\");", String.join(" + ", sizes), plan.capacity(), core);
+			}
+		}
+		backend().emitter().emit("");
+	}
+
+	default void memoryMap() {
+		ScratchpadPlan plan = plan();
+		Emitter emitter = backend().emitter();
+		emitter.emit("# Estimated data of the cores, with scratchpads of %d bytes", plan.capacity());
+		for (int core = 0; core < backend().mapping().numberOfCores(); core++) {
+			emitter.emit("core %d scratchpad %d", core, plan.used(core));
+			for (String object : plan.objects(core)) {
+				emitter.emit("\t%s %d %s", object, plan.bytes(object), plan.isSpilled(object) ? "shared" : "scratchpad");
+			}
+		}
+	}
+
+	/*
+	 * The size of an actor state is estimated from its variables and ports
+	 */
+	default long stateBytes(ActorMachine actorMachine) {
+		long bytes = POINTER_BYTES; // program counter
+		for (VarDecl parameter : actorMachine.getValueParameters()) {
+			bytes += valueBytes(backend().types().declaredType(parameter));
+		}
+		for (Scope scope : actorMachine.getScopes()) {
+			for (VarDecl var : scope.getDeclarations()) {
+				bytes += valueBytes(backend().types().declaredType(var));
+			}
+		}
+		bytes += 2 * POINTER_BYTES * (actorMachine.getInputPorts().size() + actorMachine.getOutputPorts().size());
+		if (backend().controllers().accounting()) {
+			bytes += (1 + Math.max(1, actorMachine.getTransitions().size())) * 4 * POINTER_BYTES;
+		}
+		return bytes;
+	}
+
+	default long valueBytes(IntType type) {
+		return type.getSize().isPresent() ? (type.getSize().getAsInt() + 7) / 8 : 4;
+	}
+
+	default long valueBytes(RealType type) {
+		return 8;
+	}
+
+	default long valueBytes(BoolType type) {
+		return 1;
+	}
+
+	default long valueBytes(CharType type) {
+		return 1;
+	}
+
+	default long valueBytes(ListType type) {
+		return type.getSize().orElse(0) * valueBytes(type.getElementType());
+	}
+
+	default long valueBytes(AliasType type) {
+		return valueBytes(type.getConcreteType());
+	}
+
+	default long valueBytes(Type type) {
+		return POINTER_BYTES;
+	}
+
+	/*
+	 * Algebraic tokens in inline slots are stored by value in the channels, other algebraic values are pointers
+	 */
+	default long tokenBytes(Type type) {
+		if (!backend().channels().isInlineSlot(type)) {
+			return valueBytes(type);
+		}
+		while (type instanceof AliasType) {
+			type = ((AliasType) type).getConcreteType();
+		}
+		if (type instanceof ProductType) {
+			return ((ProductType) type).getFields().stream().mapToLong(field -> valueBytes(field.getType())).sum();
+		} else {
+			return POINTER_BYTES + ((SumType) type).getVariants().stream() // tag
+					.mapToLong(variant -> variant.getFields().stream().mapToLong(field -> valueBytes(field.getType())).sum())
+					.max().orElse(0);
+		}
+	}
+}
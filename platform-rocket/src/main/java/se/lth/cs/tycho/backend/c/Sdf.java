@@ -0,0 +1,274 @@
+package se.lth.cs.tycho.backend.c;
+
+import org.multij.Binding;
+import org.multij.BindingKind;
+import org.multij.Module;
+import se.lth.cs.tycho.backend.c.util.SdfSchedule;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.OnOffSetting;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.multij.BindingKind.LAZY;
+
+/*
+ * Synchronous dataflow regions. An actor machine is SDF if it has a single transition and its controller only tests
+ * for the tokens and space that the transition consumes and produces. Connected SDF instances on the same core form
+ * a region that is fired by a static schedule, and only the channels that cross the border of the region are tested.
+ */
+@Module
+public interface Sdf {
+	@Binding(BindingKind.INJECTED)
+	Backend backend();
+
+	OnOffSetting sdfStaticSchedule = new OnOffSetting() {
+		@Override
+		public String getKey() {
+			return "sdf-static-schedule";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Fires connected synchronous dataflow instances on the same core by a static schedule.";
+		}
+
+		@Override
+		public Boolean defaultValue(Configuration configuration) {
+			return false;
+		}
+	};
+
+	final class Region {
+		private final List<Instance> instances;
+		private final List<Connection> internal;
+		private final SdfSchedule schedule;
+
+		Region(List<Instance> instances, List<Connection> internal, SdfSchedule schedule) {
+			this.instances = instances;
+			this.internal = internal;
+			this.schedule = schedule;
+		}
+
+		public List<Instance> getInstances() {
+			return instances;
+		}
+
+		public List<Connection> getInternalConnections() {
+			return internal;
+		}
+
+		public long repetitions(Instance instance) {
+			return schedule.repetitions()[instances.indexOf(instance)];
+		}
+
+		public List<Instance> firings() {
+			return Arrays.stream(schedule.firings()).mapToObj(instances::get).collect(Collectors.toList());
+		}
+
+		public long bufferBound(Connection connection) {
+			return schedule.bufferBound(internal.indexOf(connection));
+		}
+
+		public boolean contains(String instanceName) {
+			return instances.stream().anyMatch(instance -> instance.getInstanceName().equals(instanceName));
+		}
+	}
+
+	default boolean isSdf(ActorMachine actorMachine) {
+		if (actorMachine.getTransitions().size() != 1) {
+			return false;
+		}
+		Transition transition = actorMachine.getTransitions().get(0);
+		for (Condition condition : actorMachine.getConditions()) {
+			if (!(condition instanceof PortCondition)) {
+				return false;
+			}
+			PortCondition portCondition = (PortCondition) condition;
+			Map<Port, Integer> rates = portCondition.isInputCondition() ? transition.getInputRates() : transition.getOutputRates();
+			if (rate(rates, portCondition.getPortName().getName()) != portCondition.N()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	default int rate(Map<Port, Integer> rates, String port) {
+		return rates.entrySet().stream()
+				.filter(rate -> rate.getKey().getName().equals(port))
+				.mapToInt(Map.Entry::getValue)
+				.findFirst().orElse(0);
+	}
+
+	default int production(Connection.End source) {
+		return source.getInstance()
+				.map(name -> rate(transition(name).getOutputRates(), source.getPort()))
+				.orElse(0);
+	}
+
+	default int consumption(Connection.End target) {
+		return target.getInstance()
+				.map(name -> rate(transition(name).getInputRates(), target.getPort()))
+				.orElse(0);
+	}
+
+	default Transition transition(String instanceName) {
+		return backend().mapping().actorMachine(instance(instanceName)).getTransitions().get(0);
+	}
+
+	default Instance instance(String instanceName) {
+		return backend().mapping().instance(instanceName);
+	}
+
+	@Binding(LAZY)
+	default List<Region> regions() {
+		List<Region> result = new ArrayList<>();
+		if (!backend().context().getConfiguration().get(sdfStaticSchedule)) {
+			return result;
+		}
+		Mapping mapping = backend().mapping();
+		List<Instance> candidates = backend().task().getNetwork().getInstances().stream()
+				.filter(instance -> isSdf(mapping.actorMachine(instance)))
+				.collect(Collectors.toList());
+		Set<String> names = candidates.stream().map(Instance::getInstanceName).collect(Collectors.toSet());
+
+		// Union of the candidates that share a channel with positive rates on the same core
+		Map<String, String> parent = new HashMap<>();
+		names.forEach(name -> parent.put(name, name));
+		List<Connection> internal = new ArrayList<>();
+		for (Connection connection : backend().task().getNetwork().getConnections()) {
+			Optional<String> source = connection.getSource().getInstance();
+			Optional<String> target = connection.getTarget().getInstance();
+			if (source.isPresent() && target.isPresent() && names.contains(source.get()) && names.contains(target.get())
+					&& mapping.coreOf(source.get()) == mapping.coreOf(target.get())
+					&& production(connection.getSource()) > 0 && consumption(connection.getTarget()) > 0) {
+				parent.put(find(parent, source.get()), find(parent, target.get()));
+				internal.add(connection);
+			}
+		}
+
+		Map<String, List<Instance>> groups = new LinkedHashMap<>();
+		for (Instance instance : candidates) {
+			groups.computeIfAbsent(find(parent, instance.getInstanceName()), x -> new ArrayList<>()).add(instance);
+		}
+		for (List<Instance> group : groups.values()) {
+			if (group.size() < 2) {
+				continue;
+			}
+			List<String> groupNames = group.stream().map(Instance::getInstanceName).collect(Collectors.toList());
+			List<Connection> edges = internal.stream()
+					.filter(connection -> groupNames.contains(connection.getSource().getInstance().get()))
+					.collect(Collectors.toList());
+			SdfSchedule schedule = new SdfSchedule(group.size());
+			for (Connection connection : edges) {
+				schedule.addEdge(groupNames.indexOf(connection.getSource().getInstance().get()),
+						groupNames.indexOf(connection.getTarget().getInstance().get()),
+						production(connection.getSource()), consumption(connection.getTarget()));
+			}
+			String description = String.join(", ", groupNames);
+			if (!schedule.solve()) {
+				report(Diagnostic.Kind.WARNING, "The SDF region {" + description + "} is inconsistent or deadlocks and is scheduled dynamically.");
+				continue;
+			}
+			Region region = new Region(group, edges, schedule);
+			boolean fits = true;
+			for (Connection connection : edges) {
+				int declared = backend().channels().declaredBufferSize(connection);
+				if (declared > 0 && declared < region.bufferBound(connection)) {
+					report(Diagnostic.Kind.WARNING, String.format("The SDF region {%s} needs %d tokens on %s -> %s and is scheduled dynamically.",
+							description, region.bufferBound(connection), mapping.endName(connection.getSource()), mapping.endName(connection.getTarget())));
+					fits = false;
+				}
+			}
+			for (Connection connection : borderConnections(region)) {
+				int declared = backend().channels().declaredBufferSize(connection);
+				long tokens = borderTokens(region, connection);
+				if (declared > 0 && declared < tokens) {
+					report(Diagnostic.Kind.WARNING, String.format("The SDF region {%s} needs %d tokens on %s -> %s and is scheduled dynamically.",
+							description, tokens, mapping.endName(connection.getSource()), mapping.endName(connection.getTarget())));
+					fits = false;
+				}
+			}
+			if (fits) {
+				String repetitions = group.stream()
+						.map(instance -> instance.getInstanceName() + "*" + region.repetitions(instance))
+						.collect(Collectors.joining(", "));
+				String buffers = edges.stream()
+						.map(connection -> mapping.endName(connection.getSource()) + " -> " + mapping.endName(connection.getTarget()) + ": " + region.bufferBound(connection))
+						.collect(Collectors.joining(", "));
+				report(Diagnostic.Kind.INFO, "Static schedule for {" + repetitions + "}, minimal buffer sizes {" + buffers + "}.");
+				result.add(region);
+			}
+		}
+		return result;
+	}
+
+	default String find(Map<String, String> parent, String name) {
+		while (!parent.get(name).equals(name)) {
+			name = parent.get(name);
+		}
+		return name;
+	}
+
+	default void report(Diagnostic.Kind kind, String message) {
+		backend().context().getReporter().report(new Diagnostic(kind, message));
+	}
+
+	default Optional<Region> regionOf(String instanceName) {
+		return regions().stream().filter(region -> region.contains(instanceName)).findFirst();
+	}
+
+	default OptionalInt minimalBufferSize(Connection connection) {
+		for (Region region : regions()) {
+			if (region.getInternalConnections().contains(connection)) {
+				return OptionalInt.of((int) region.bufferBound(connection));
+			}
+		}
+		return OptionalInt.empty();
+	}
+
+	/*
+	 * The tokens on a connection into a region, or the space on a connection out of it, that one period of the
+	 * schedule needs before the region is fired
+	 */
+	default long borderTokens(Region region, Connection connection) {
+		Optional<String> target = connection.getTarget().getInstance();
+		if (target.isPresent() && region.contains(target.get())) {
+			return region.repetitions(instance(target.get())) * consumption(connection.getTarget());
+		}
+		String source = connection.getSource().getInstance().get();
+		return region.repetitions(instance(source)) * production(connection.getSource());
+	}
+
+	/*
+	 * The smallest buffer size of a connection on the border of regions, so that every region on its ends can fire
+	 */
+	default int borderBufferSize(Connection connection) {
+		long size = 0;
+		for (Region region : regions()) {
+			if (borderConnections(region).contains(connection)) {
+				size = Math.max(size, borderTokens(region, connection));
+			}
+		}
+		return (int) size;
+	}
+
+	/*
+	 * The connections that cross the border of a region
+	 */
+	default List<Connection> borderConnections(Region region) {
+		return backend().task().getNetwork().getConnections().stream()
+				.filter(connection -> !region.getInternalConnections().contains(connection))
+				.filter(connection -> connection.getSource().getInstance().map(region::contains).orElse(false)
+						|| connection.getTarget().getInstance().map(region::contains).orElse(false))
+				.collect(Collectors.toList());
+	}
+}
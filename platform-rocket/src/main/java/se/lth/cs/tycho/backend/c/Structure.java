@@ -7,6 +7,7 @@ import se.lth.cs.tycho.attribute.Types;
 import se.lth.cs.tycho.ir.Annotation;
 import se.lth.cs.tycho.ir.IRNode;
 import se.lth.cs.tycho.ir.NamespaceDecl;
+import se.lth.cs.tycho.ir.Port;
 import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
 import se.lth.cs.tycho.ir.decl.VarDecl;
 import se.lth.cs.tycho.ir.entity.Entity;
@@ -15,7 +16,7 @@ import se.lth.cs.tycho.ir.entity.am.*;
 import se.lth.cs.tycho.ir.expr.ExprInput;
 import se.lth.cs.tycho.ir.expr.ExprLiteral;
 import se.lth.cs.tycho.ir.network.Connection;
-import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.stmt.Statement;
 import se.lth.cs.tycho.ir.stmt.StmtBlock;
 import se.lth.cs.tycho.ir.stmt.StmtConsume;
 import se.lth.cs.tycho.ir.stmt.StmtWrite;
@@ -92,17 +93,17 @@ public interface Structure {
         backend().controllers().emitController(name, actorMachine);
         emitter().emit("");
         emitter().emit("");
+        if (backend().sdf().regionOf(name).isPresent()) {
+            backend().controllers().emitSdfFire(name, actorMachine);
+            emitter().emit("");
+            emitter().emit("");
+        }
     }
 
     default void actorMachineInitHeader(String name, ActorMachine actorMachine) {
-        List<Instance> instances =  backend().task().getNetwork().getInstances();
-        ArrayList<String> coreNames = new ArrayList<>(instances.size());
-        for (Instance core : instances){
-            coreNames.add(core.getInstanceName());
-        }
         String selfParameter = name + "_state *self";
         List<String> parameters = getEntityInitParameters(selfParameter, actorMachine);
-        emitter().emit("void %s_init_actor(%s) SECTION(\".core%d.text\");", name, String.join(", ", parameters), coreNames.indexOf(name));
+        emitter().emit("void %s_init_actor(%s) SECTION(\".core%d.text\");", name, String.join(", ", parameters), backend().mapping().coreOf(name));
         emitter().emit("");
     }
 
@@ -207,7 +208,10 @@ public interface Structure {
         emitter().emit("\trd = rd_;                                                           \\");
         emitter().emit("}");
         emitter().emit("");
-        emitter().emit("#define XCUSTOM_ACC 0");
+        Integer opcode = backend().mapping().accOpcodes().get(name);
+        if (opcode != null) {
+            emitter().emit("#define XCUSTOM_ACC_%s %d", name, opcode);
+        }
         emitter().emit("#define FUNCT_FIRE  4");
         emitter().emit("#define FUNCT_IN1   1");
         emitter().emit("#define FUNCT_IN2   2");
@@ -292,7 +296,7 @@ public interface Structure {
         return parameters;
     }
 
-    default void prepareCustomInstruction(Transition transition){
+    default void prepareCustomInstruction(String name, Transition transition){
         emitter().emit("// Prepare the custom instruction");
         Set<VarDecl> inputVars = backend().ioVariables().IOVariablesRead(transition);
         Set<VarDecl> outputVars = backend().ioVariables().IOVariablesWrite(transition);
@@ -345,14 +349,14 @@ public interface Structure {
         m = 0;
         for(int j = 0; j < (inputVars.size() + 3) / 4; j++){
             if (j + 1 < (inputVars.size() + 3) / 4)
-                emitter().emit("ROCC_INSTRUCTION_NO_BLOCK(XCUSTOM_ACC, accOutput0.accIO64, accInput" + m + ".accIO64, accInput" + (m+1) + ".accIO64, FUNCT_IN1);");
+                emitter().emit("ROCC_INSTRUCTION_NO_BLOCK(XCUSTOM_ACC_" + name + ", accOutput0.accIO64, accInput" + m + ".accIO64, accInput" + (m+1) + ".accIO64, FUNCT_IN1);");
             else {
                 String tmp = "";
                 if(m + 2 > (inputVars.size() + 1) / 2) // m starts from 0
                     tmp = "0";
                 else
                     tmp = "accInput" + (m + 1) + ".accIO64";
-                emitter().emit("ROCC_INSTRUCTION(XCUSTOM_ACC, accOutput0.accIO64, accInput" + m + ".accIO64, " + tmp + ", FUNCT_FIRE);");
+                emitter().emit("ROCC_INSTRUCTION(XCUSTOM_ACC_" + name + ", accOutput0.accIO64, accInput" + m + ".accIO64, " + tmp + ", FUNCT_FIRE);");
             }
 
             m = m + 2;
@@ -360,7 +364,7 @@ public interface Structure {
 
         // Read back the result(s)
         for(int j = 1 ; j < (outputVars.size() + 1) / 2; j++){
-            emitter().emit("ROCC_INSTRUCTION(XCUSTOM_ACC, accOutput" + j + ".accIO64, 0, 0, FUNCT_READ);");
+            emitter().emit("ROCC_INSTRUCTION(XCUSTOM_ACC_" + name + ", accOutput" + j + ".accIO64, 0, 0, FUNCT_READ);");
         }
         // Copy the returned results into the local variables
         m = 0;
@@ -411,16 +415,21 @@ public interface Structure {
             emitter().emit("/*static*/ void %s_transition_%d(%s_state *self) {", name, i, name);
             emitter().increaseIndentation();
             backend().trackable().enter();
+            List<Port> written = stagedPorts(transition, StmtWrite.class);
+            List<Port> consumed = stagedPorts(transition, StmtConsume.class);
+            written.forEach(port -> emitter().emit("size_t %s = 0;", code().writeCursor(port)));
+            consumed.forEach(port -> emitter().emit("size_t %s = 0;", code().readCursor(port)));
             // -- Check if transition contains @acc annotation
             boolean acceleratedTransition = Annotation.hasAnnotationWithName(ACC_ANNOTATION, transition.getAnnotations());
             if (acceleratedTransition) {
-                prepareCustomInstruction(transition);
+                prepareCustomInstruction(name, transition);
                 backend().codeChisel().acceleratedTransition(name, actorMachine, transition);
                 // Print the accelerators for the class in subsystem/config.scala file
                 //printSubSystemConfigAcc();
             } else {
                 transition.getBody().forEach(code()::execute);
             }
+            publishCursors(written, consumed);
             backend().trackable().exit();
             emitter().decreaseIndentation();
             emitter().emit("}");
@@ -430,6 +439,35 @@ public interface Structure {
         }
     }
 
+    /*
+     * The ports that a transition writes to or consumes from, in the order they first occur.
+     */
+    default List<Port> stagedPorts(Transition transition, Class<? extends Statement> kind) {
+        Map<String, Port> ports = new LinkedHashMap<>();
+        transition.walk()
+                .filter(kind::isInstance)
+                .map(node -> node instanceof StmtWrite ? ((StmtWrite) node).getPort() : ((StmtConsume) node).getPort())
+                .forEach(port -> ports.putIfAbsent(port.getName(), port));
+        return new ArrayList<>(ports.values());
+    }
+
+    /*
+     * One fence orders the tokens and the reads of the firing before the counters, and every counter is then
+     * written once per firing instead of once per token.
+     */
+    default void publishCursors(List<Port> written, List<Port> consumed) {
+        if (written.isEmpty() && consumed.isEmpty()) {
+            return;
+        }
+        emitter().emit("__sync_synchronize();");
+        for (Port port : written) {
+            emitter().emit("channel_publish_%s(self->%s_channels, self->%2$s_channels_mirror, %s);", code().outputPortTypeSize(port), port.getName(), code().writeCursor(port));
+        }
+        for (Port port : consumed) {
+            emitter().emit("channel_consume_%s(self->%s_channel, self->%2$s_channel_mirror, %s);", code().inputPortTypeSize(port), port.getName(), code().readCursor(port));
+        }
+    }
+
     default void actorMachineConditions(String name, ActorMachine actorMachine) {
         int i = 0;
         for (Condition condition : actorMachine.getConditions()) {
@@ -476,6 +514,8 @@ public interface Structure {
                     String variableName = backend().variables().declarationName(var);
                     String t = backend().callables().mangle(type).encode();
                     emitter().emit("self->%s = (%s) { *%s, NULL };", variableName, t, wrapperName);
+                } else if (code().isInputWindow(var)) {
+                    code().initInputWindow(var);
                 } else if (var.getValue() != null) {
                     emitter().emit("{");
                     emitter().increaseIndentation();
@@ -530,6 +570,10 @@ public interface Structure {
         emitter().emit("int program_counter;");
         emitter().emit("");
 
+        if (backend().controllers().accounting()) {
+            backend().controllers().accountingCounters(actorMachine);
+        }
+
         emitter().emit("// parameters");
         for (VarDecl param : actorMachine.getValueParameters()) {
             String decl = code().declaration(types().declaredType(param), backend().variables().declarationName(param));
@@ -561,6 +605,10 @@ public interface Structure {
             for (VarDecl var : scope.getDeclarations()) {
                 String decl = code().declaration(types().declaredType(var), backend().variables().declarationName(var));
                 emitter().emit("%s;", decl);
+                if (code().isInputWindow(var)) {
+                    Type element = ((ListType) types().declaredType(var)).getElementType();
+                    emitter().emit("const %s *%s;", code().type(element), code().windowName(var));
+                }
             }
             emitter().emit("");
             i++;
@@ -0,0 +1,78 @@
+package se.lth.cs.tycho.backend.c.util;
+
+/**
+ * Capacities of channels between a producer and a consumer that fire with bounded token windows.
+ *
+ * A producer that writes p tokens per firing and a consumer that reads c tokens per firing never deadlock on a
+ * channel with p + c - gcd(p, c) places. The bound only holds for fixed rates; when the rates of a side vary up to
+ * its window, the channel gets p + c places. Channels that should let both sides run ahead get room for a number of
+ * firings of the larger window.
+ */
+public final class ChannelCapacity {
+	private ChannelCapacity() {
+	}
+
+	/**
+	 * Returns the smallest capacity that does not deadlock with fixed rates
+	 * @param production the number of tokens that the producer writes in one firing
+	 * @param consumption the number of tokens that the consumer reads in one firing
+	 * @return the smallest capacity
+	 * @throws IllegalArgumentException if a window is not positive
+	 */
+	public static int minimal(int production, int consumption) {
+		return minimal(production, consumption, true);
+	}
+
+	/**
+	 * Returns the smallest capacity that does not deadlock
+	 * @param production the largest number of tokens that the producer writes in one firing
+	 * @param consumption the largest number of tokens that the consumer reads in one firing
+	 * @param fixedRates whether every firing of both sides writes or reads its whole window
+	 * @return the smallest capacity
+	 * @throws IllegalArgumentException if a window is not positive
+	 */
+	public static int minimal(int production, int consumption, boolean fixedRates) {
+		if (production < 1 || consumption < 1) {
+			throw new IllegalArgumentException("Windows must be positive.");
+		}
+		return production + consumption - (fixedRates ? gcd(production, consumption) : 0);
+	}
+
+	/**
+	 * Returns a capacity that holds a number of firings of the larger window, and at least the smallest capacity with
+	 * fixed rates
+	 * @param production the number of tokens that the producer writes in one firing
+	 * @param consumption the number of tokens that the consumer reads in one firing
+	 * @param firings the number of firings that the channel holds
+	 * @return the capacity
+	 * @throws IllegalArgumentException if a window or the number of firings is not positive
+	 */
+	public static int capacity(int production, int consumption, int firings) {
+		return capacity(production, consumption, firings, true);
+	}
+
+	/**
+	 * Returns a capacity that holds a number of firings of the larger window, and at least the smallest capacity
+	 * @param production the largest number of tokens that the producer writes in one firing
+	 * @param consumption the largest number of tokens that the consumer reads in one firing
+	 * @param firings the number of firings that the channel holds
+	 * @param fixedRates whether every firing of both sides writes or reads its whole window
+	 * @return the capacity
+	 * @throws IllegalArgumentException if a window or the number of firings is not positive
+	 */
+	public static int capacity(int production, int consumption, int firings, boolean fixedRates) {
+		if (firings < 1) {
+			throw new IllegalArgumentException("The number of firings must be positive.");
+		}
+		return Math.max(minimal(production, consumption, fixedRates), firings * Math.max(production, consumption));
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
@@ -0,0 +1,186 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns the nodes of a weighted graph to a fixed number of cores.
+ *
+ * The cost of an assignment is the load of the most loaded core plus the traffic crossing between cores
+ * multiplied by the channel cost. A greedy placement of the heaviest nodes first is refined by moving single
+ * nodes as long as that lowers the cost.
+ */
+public final class CorePartitioner {
+	private final int nodes;
+	private final int cores;
+	private final long[] work;
+	private final int[] pinned;
+	private final List<long[]> traffic;
+	private long channelCost;
+
+	/**
+	 * Creates a partitioner for the given number of nodes and cores
+	 * @param nodes the number of nodes
+	 * @param cores the number of cores
+	 * @throws IllegalArgumentException if there are no cores or a negative number of nodes
+	 */
+	public CorePartitioner(int nodes, int cores) {
+		if (nodes < 0 || cores < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.nodes = nodes;
+		this.cores = cores;
+		this.work = new long[nodes];
+		this.pinned = new int[nodes];
+		Arrays.fill(pinned, -1);
+		this.traffic = new ArrayList<>();
+		this.channelCost = 1;
+	}
+
+	/**
+	 * Sets the estimated work of a node
+	 * @param node the node
+	 * @param work the work of the node
+	 */
+	public void setWork(int node, long work) {
+		this.work[node] = work;
+	}
+
+	/**
+	 * Adds traffic between two nodes. Traffic between nodes on the same core is free.
+	 * @param a one end of the traffic
+	 * @param b the other end of the traffic
+	 * @param tokens the amount of traffic
+	 */
+	public void addTraffic(int a, int b, long tokens) {
+		if (a != b) {
+			traffic.add(new long[] { a, b, tokens });
+		}
+	}
+
+	/**
+	 * Sets the cost of moving one unit of traffic between two cores, expressed in units of work
+	 * @param channelCost the cost of one unit of traffic between cores
+	 */
+	public void setChannelCost(long channelCost) {
+		this.channelCost = channelCost;
+	}
+
+	/**
+	 * Places a node on a given core
+	 * @param node the node
+	 * @param core the core that the node must be placed on
+	 * @throws IllegalArgumentException if the core does not exist
+	 */
+	public void pin(int node, int core) {
+		if (core < 0 || core >= cores) {
+			throw new IllegalArgumentException("Core " + core + " does not exist.");
+		}
+		pinned[node] = core;
+	}
+
+	/**
+	 * Computes the assignment
+	 * @return the core of every node
+	 */
+	public int[] partition() {
+		int[] assignment = new int[nodes];
+		Arrays.fill(assignment, -1);
+		for (int node = 0; node < nodes; node++) {
+			if (pinned[node] >= 0) {
+				assignment[node] = pinned[node];
+			}
+		}
+
+		Integer[] order = new Integer[nodes];
+		for (int node = 0; node < nodes; node++) {
+			order[node] = node;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(work[b], work[a]));
+		for (int node : order) {
+			if (assignment[node] < 0) {
+				assignment[node] = bestCore(node, assignment);
+			}
+		}
+
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			long current = cost(assignment);
+			for (int node = 0; node < nodes; node++) {
+				if (pinned[node] >= 0) {
+					continue;
+				}
+				int original = assignment[node];
+				for (int core = 0; core < cores; core++) {
+					if (core == original) {
+						continue;
+					}
+					assignment[node] = core;
+					long c = cost(assignment);
+					if (c < current) {
+						current = c;
+						original = core;
+						improved = true;
+					}
+				}
+				assignment[node] = original;
+			}
+		}
+		return assignment;
+	}
+
+	/**
+	 * Computes the cost of an assignment
+	 * @param assignment the core of every node
+	 * @return the load of the most loaded core plus the cost of the traffic between cores
+	 */
+	public long cost(int[] assignment) {
+		long[] load = new long[cores];
+		for (int node = 0; node < nodes; node++) {
+			load[assignment[node]] += work[node];
+		}
+		long max = 0;
+		for (long l : load) {
+			max = Math.max(max, l);
+		}
+		long cut = 0;
+		for (long[] t : traffic) {
+			if (assignment[(int) t[0]] != assignment[(int) t[1]]) {
+				cut += t[2];
+			}
+		}
+		return max + channelCost * cut;
+	}
+
+	private int bestCore(int node, int[] assignment) {
+		long[] load = new long[cores];
+		for (int n = 0; n < nodes; n++) {
+			if (assignment[n] >= 0) {
+				load[assignment[n]] += work[n];
+			}
+		}
+		long maxLoad = 0;
+		for (long l : load) {
+			maxLoad = Math.max(maxLoad, l);
+		}
+		int best = 0;
+		long bestCost = Long.MAX_VALUE;
+		for (int core = 0; core < cores; core++) {
+			long cut = 0;
+			for (long[] t : traffic) {
+				int other = t[0] == node ? (int) t[1] : t[1] == node ? (int) t[0] : -1;
+				if (other >= 0 && assignment[other] >= 0 && assignment[other] != core) {
+					cut += t[2];
+				}
+			}
+			long c = Math.max(maxLoad, load[core] + work[node]) + channelCost * cut;
+			if (c < bestCost || c == bestCost && load[core] < load[best]) {
+				best = core;
+				bestCost = c;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,165 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import java.util.*;
+
+/**
+ * Recorded execution data of a network, used to place actor instances on cores.
+ *
+ * A profile is a text file with one record per line. Empty lines and lines starting with '#' are ignored.
+ * <pre>
+ * network &lt;key&gt; &lt;value&gt; ...
+ * instance &lt;name&gt; &lt;key&gt; &lt;value&gt; ...
+ * connection &lt;source&gt; &lt;target&gt; &lt;key&gt; &lt;value&gt; ...
+ * </pre>
+ * where the ends of a connection are written as instance.port, or just port for a port of the network, and every
+ * value is an integer. Keys that are not used by the reader are ignored, and values for the same key are summed,
+ * so the output of several cores can be concatenated. The placement keys are not summed, the last value is used.
+ */
+public final class PlacementProfile {
+	public static final String NETWORK = "network";
+	public static final String INSTANCE = "instance";
+	public static final String CONNECTION = "connection";
+
+	public static final String CORE = "core";
+	public static final String CORE_COUNT = "core-count";
+	public static final String CHANNEL_COST = "channel-cost";
+	public static final String WORK = "work";
+	private static final Set<String> PLACEMENT_KEYS = new HashSet<>(Arrays.asList(CORE, CORE_COUNT, CHANNEL_COST, WORK));
+
+	private final Map<String, Long> network;
+	private final Map<String, Map<String, Long>> instances;
+	private final Map<String, Map<String, Long>> connections;
+
+	private PlacementProfile() {
+		network = new LinkedHashMap<>();
+		instances = new LinkedHashMap<>();
+		connections = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Reads a profile
+	 * @param lines the lines of the profile
+	 * @return the profile
+	 * @throws IllegalArgumentException if a line is malformed
+	 */
+	public static PlacementProfile parse(List<String> lines) {
+		PlacementProfile profile = new PlacementProfile();
+		int lineNumber = 0;
+		for (String line : lines) {
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			String[] words = trimmed.split("\\s+");
+			Map<String, Long> values;
+			int first;
+			if (words[0].equals(NETWORK)) {
+				values = profile.network;
+				first = 1;
+			} else if (words[0].equals(INSTANCE) && words.length >= 2) {
+				values = profile.instances.computeIfAbsent(words[1], x -> new LinkedHashMap<>());
+				first = 2;
+			} else if (words[0].equals(CONNECTION) && words.length >= 3) {
+				values = profile.connections.computeIfAbsent(connectionKey(words[1], words[2]), x -> new LinkedHashMap<>());
+				first = 3;
+			} else {
+				throw new IllegalArgumentException(String.format("Line %d: expected a network, an instance or a connection record.", lineNumber));
+			}
+			if ((words.length - first) % 2 != 0) {
+				throw new IllegalArgumentException(String.format("Line %d: key without value.", lineNumber));
+			}
+			for (int i = first; i < words.length; i += 2) {
+				try {
+					long value = Long.parseLong(words[i + 1]);
+					if (PLACEMENT_KEYS.contains(words[i])) {
+						values.put(words[i], value);
+					} else {
+						values.merge(words[i], value, Long::sum);
+					}
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(String.format("Line %d: \"%s\" is not an integer.", lineNumber, words[i + 1]));
+				}
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns a recorded value of the network
+	 * @param key the key of the value
+	 * @return the value, or an empty result if it was not recorded
+	 */
+	public OptionalLong networkValue(String key) {
+		return value(network, key);
+	}
+
+	/**
+	 * Returns a recorded value of an instance
+	 * @param instance the name of the instance
+	 * @param key the key of the value
+	 * @return the value, or an empty result if it was not recorded
+	 */
+	public OptionalLong instanceValue(String instance, String key) {
+		return value(instances.get(instance), key);
+	}
+
+	/**
+	 * Returns a recorded value of a connection
+	 * @param source the source end of the connection
+	 * @param target the target end of the connection
+	 * @param key the key of the value
+	 * @return the value, or an empty result if it was not recorded
+	 */
+	public OptionalLong connectionValue(String source, String target, String key) {
+		return value(connections.get(connectionKey(source, target)), key);
+	}
+
+	/**
+	 * Formats a network record
+	 * @param values the keys and values of the record
+	 * @return a line of a profile
+	 */
+	public static String networkRecord(Map<String, Long> values) {
+		return record(NETWORK, values);
+	}
+
+	/**
+	 * Formats an instance record
+	 * @param instance the name of the instance
+	 * @param values the keys and values of the record
+	 * @return a line of a profile
+	 */
+	public static String instanceRecord(String instance, Map<String, Long> values) {
+		return record(INSTANCE + " " + instance, values);
+	}
+
+	/**
+	 * Formats a connection record
+	 * @param source the source end of the connection
+	 * @param target the target end of the connection
+	 * @param values the keys and values of the record
+	 * @return a line of a profile
+	 */
+	public static String connectionRecord(String source, String target, Map<String, Long> values) {
+		return record(CONNECTION + " " + source + " " + target, values);
+	}
+
+	private static String record(String head, Map<String, Long> values) {
+		StringBuilder builder = new StringBuilder(head);
+		values.forEach((key, value) -> builder.append(' ').append(key).append(' ').append(value));
+		return builder.toString();
+	}
+
+	private static String connectionKey(String source, String target) {
+		return source + " " + target;
+	}
+
+	private static OptionalLong value(Map<String, Long> values, String key) {
+		if (values == null || !values.containsKey(key)) {
+			return OptionalLong.empty();
+		} else {
+			return OptionalLong.of(values.get(key));
+		}
+	}
+}
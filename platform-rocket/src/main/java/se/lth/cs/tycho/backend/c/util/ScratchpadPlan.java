@@ -0,0 +1,157 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the data objects of the cores in their scratchpads.
+ *
+ * Every object belongs to a core and is placed in the scratchpad of that core if it fits. When the objects of a
+ * core do not fit, the largest objects that may be spilled are moved to shared memory until the rest fits.
+ */
+public final class ScratchpadPlan {
+	private final long capacity;
+	private final Map<String, long[]> objects;
+	private boolean planned;
+
+	/**
+	 * Creates an empty plan
+	 * @param capacity the number of bytes in the scratchpad of every core
+	 * @throws IllegalArgumentException if the capacity is negative
+	 */
+	public ScratchpadPlan(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.objects = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Adds an object
+	 * @param core the core that uses the object
+	 * @param name the unique name of the object
+	 * @param bytes the size of the object
+	 * @param spillable whether the object may be placed in shared memory
+	 * @throws IllegalArgumentException if the name is already used or the size is negative
+	 */
+	public void add(int core, String name, long bytes, boolean spillable) {
+		if (bytes < 0 || objects.containsKey(name)) {
+			throw new IllegalArgumentException(name);
+		}
+		objects.put(name, new long[] { core, bytes, spillable ? 1 : 0, 0 });
+		planned = false;
+	}
+
+	/**
+	 * Decides which objects are spilled
+	 */
+	public void plan() {
+		Map<Integer, List<String>> byCore = new LinkedHashMap<>();
+		objects.forEach((name, object) -> {
+			object[3] = 0;
+			byCore.computeIfAbsent((int) object[0], x -> new ArrayList<>()).add(name);
+		});
+		for (List<String> names : byCore.values()) {
+			long used = names.stream().mapToLong(name -> objects.get(name)[1]).sum();
+			List<String> candidates = new ArrayList<>();
+			for (String name : names) {
+				if (objects.get(name)[2] == 1) {
+					candidates.add(name);
+				}
+			}
+			candidates.sort(Comparator.comparingLong((String name) -> objects.get(name)[1]).reversed());
+			for (String name : candidates) {
+				if (used <= capacity) {
+					break;
+				}
+				objects.get(name)[3] = 1;
+				used -= objects.get(name)[1];
+			}
+		}
+		planned = true;
+	}
+
+	/**
+	 * Returns whether an object is placed in shared memory
+	 * @param name the name of the object
+	 * @return true if the object is spilled
+	 * @throws IllegalArgumentException if there is no such object
+	 */
+	public boolean isSpilled(String name) {
+		ensurePlanned();
+		long[] object = objects.get(name);
+		if (object == null) {
+			throw new IllegalArgumentException(name);
+		}
+		return object[3] == 1;
+	}
+
+	/**
+	 * Returns the number of scratchpad bytes that the objects of a core use
+	 * @param core the core
+	 * @return the number of bytes that are not spilled
+	 */
+	public long used(int core) {
+		ensurePlanned();
+		return objects.values().stream()
+				.filter(object -> object[0] == core && object[3] == 0)
+				.mapToLong(object -> object[1])
+				.sum();
+	}
+
+	/**
+	 * Returns whether the objects of a core that are not spilled fit in its scratchpad
+	 * @param core the core
+	 * @return true if the objects fit
+	 */
+	public boolean fits(int core) {
+		return used(core) <= capacity;
+	}
+
+	/**
+	 * Returns the objects of a core in the order they were added
+	 * @param core the core
+	 * @return the names of the objects
+	 */
+	public List<String> objects(int core) {
+		List<String> result = new ArrayList<>();
+		objects.forEach((name, object) -> {
+			if (object[0] == core) {
+				result.add(name);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns the size of an object
+	 * @param name the name of the object
+	 * @return the number of bytes of the object
+	 * @throws IllegalArgumentException if there is no such object
+	 */
+	public long bytes(String name) {
+		long[] object = objects.get(name);
+		if (object == null) {
+			throw new IllegalArgumentException(name);
+		}
+		return object[1];
+	}
+
+	/**
+	 * Returns the size of the scratchpads
+	 * @return the number of bytes in the scratchpad of every core
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	private void ensurePlanned() {
+		if (!planned) {
+			plan();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Periodic admissible sequential schedule of a synchronous dataflow graph without initial tokens.
+ *
+ * The repetition vector is the smallest positive solution of the balance equations of the graph. The schedule
+ * fires every actor as often as its repetition count, and among the actors that can fire it always picks the one
+ * that comes last in topological order, which keeps the number of tokens on the edges low.
+ */
+public final class SdfSchedule {
+	private final int actors;
+	private final List<int[]> edges;
+	private long[] repetitions;
+	private int[] firings;
+	private long[] bounds;
+
+	/**
+	 * Creates an empty graph
+	 * @param actors the number of actors
+	 */
+	public SdfSchedule(int actors) {
+		if (actors < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.actors = actors;
+		this.edges = new ArrayList<>();
+	}
+
+	/**
+	 * Adds an edge
+	 * @param source the producing actor
+	 * @param target the consuming actor
+	 * @param production the number of tokens produced by one firing of the source
+	 * @param consumption the number of tokens consumed by one firing of the target
+	 * @return the index of the edge
+	 * @throws IllegalArgumentException if a rate is not positive
+	 */
+	public int addEdge(int source, int target, int production, int consumption) {
+		if (production < 1 || consumption < 1) {
+			throw new IllegalArgumentException("Rates must be positive.");
+		}
+		edges.add(new int[] { source, target, production, consumption });
+		return edges.size() - 1;
+	}
+
+	/**
+	 * Computes the repetition vector and the schedule
+	 * @return false if the graph is inconsistent or deadlocks
+	 */
+	public boolean solve() {
+		long[] num = new long[actors];
+		long[] den = new long[actors];
+		for (int start = 0; start < actors; start++) {
+			if (num[start] != 0) {
+				continue;
+			}
+			num[start] = 1;
+			den[start] = 1;
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int[] e : edges) {
+					int s = e[0], t = e[1];
+					if (num[s] != 0 && num[t] == 0) {
+						// r[t] = r[s] * production / consumption
+						num[t] = num[s] * e[2];
+						den[t] = den[s] * e[3];
+						reduce(num, den, t);
+						changed = true;
+					} else if (num[t] != 0 && num[s] == 0) {
+						num[s] = num[t] * e[3];
+						den[s] = den[t] * e[2];
+						reduce(num, den, s);
+						changed = true;
+					}
+				}
+			}
+		}
+		for (int[] e : edges) {
+			if (num[e[0]] * e[2] * den[e[1]] != num[e[1]] * e[3] * den[e[0]]) {
+				return false;
+			}
+		}
+		long lcm = 1;
+		for (int a = 0; a < actors; a++) {
+			lcm = lcm / gcd(lcm, den[a]) * den[a];
+		}
+		long[] r = new long[actors];
+		long g = 0;
+		for (int a = 0; a < actors; a++) {
+			r[a] = num[a] * (lcm / den[a]);
+			g = gcd(g, r[a]);
+		}
+		for (int a = 0; a < actors; a++) {
+			r[a] /= g;
+		}
+
+		int[] order = topologicalOrder();
+		if (order == null) {
+			return false;
+		}
+		long[] remaining = r.clone();
+		long[] tokens = new long[edges.size()];
+		long[] max = new long[edges.size()];
+		List<Integer> sequence = new ArrayList<>();
+		long total = Arrays.stream(r).sum();
+		while (sequence.size() < total) {
+			int fire = -1;
+			for (int i = actors - 1; i >= 0 && fire < 0; i--) {
+				if (remaining[order[i]] > 0 && canFire(order[i], tokens)) {
+					fire = order[i];
+				}
+			}
+			if (fire < 0) {
+				return false;
+			}
+			for (int i = 0; i < edges.size(); i++) {
+				int[] e = edges.get(i);
+				if (e[1] == fire) {
+					tokens[i] -= e[3];
+				}
+				if (e[0] == fire) {
+					tokens[i] += e[2];
+					max[i] = Math.max(max[i], tokens[i]);
+				}
+			}
+			remaining[fire]--;
+			sequence.add(fire);
+		}
+		repetitions = r;
+		firings = sequence.stream().mapToInt(Integer::intValue).toArray();
+		bounds = max;
+		return true;
+	}
+
+	/**
+	 * Returns the repetition vector
+	 * @return the number of firings of every actor in one period
+	 */
+	public long[] repetitions() {
+		return repetitions.clone();
+	}
+
+	/**
+	 * Returns the schedule
+	 * @return the actors in the order they fire in one period
+	 */
+	public int[] firings() {
+		return firings.clone();
+	}
+
+	/**
+	 * Returns the largest number of tokens on an edge during the schedule, which is the smallest buffer that the
+	 * schedule can run in
+	 * @param edge the index of the edge
+	 * @return the buffer bound of the edge
+	 */
+	public long bufferBound(int edge) {
+		return bounds[edge];
+	}
+
+	private boolean canFire(int actor, long[] tokens) {
+		for (int i = 0; i < edges.size(); i++) {
+			int[] e = edges.get(i);
+			if (e[1] == actor && tokens[i] < e[3]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int[] topologicalOrder() {
+		int[] incoming = new int[actors];
+		for (int[] e : edges) {
+			incoming[e[1]]++;
+		}
+		int[] order = new int[actors];
+		int n = 0;
+		for (int a = 0; a < actors; a++) {
+			if (incoming[a] == 0) {
+				order[n++] = a;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			for (int[] e : edges) {
+				if (e[0] == order[i] && --incoming[e[1]] == 0) {
+					order[n++] = e[1];
+				}
+			}
+		}
+		return n == actors ? order : null;
+	}
+
+	private static void reduce(long[] num, long[] den, int i) {
+		long g = gcd(num[i], den[i]);
+		num[i] /= g;
+		den[i] /= g;
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
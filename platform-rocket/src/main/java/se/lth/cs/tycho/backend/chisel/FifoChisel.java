@@ -0,0 +1,164 @@
+package se.lth.cs.tycho.backend.chisel;
+
+import org.multij.Binding;
+import org.multij.BindingKind;
+import org.multij.Module;
+import se.lth.cs.tycho.backend.c.Backend;
+import se.lth.cs.tycho.backend.c.Channels;
+import se.lth.cs.tycho.backend.c.Emitter;
+import se.lth.cs.tycho.backend.c.Mapping;
+import se.lth.cs.tycho.compiler.Compiler;
+import se.lth.cs.tycho.ir.network.Connection;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.multij.BindingKind.LAZY;
+
+/*
+ * Generates the RoCC accelerators that hold the hardware fifos. The queue of a fifo is in the accelerator of the
+ * receiving tile, and the accelerator of the sending tile reaches it through wires that are bored between the tiles.
+ */
+@Module
+public interface FifoChisel {
+    @Binding(BindingKind.INJECTED)
+    Backend backend();
+
+    default Path target() {
+        return backend().context().getConfiguration().get(Compiler.targetPath);
+    }
+
+    @Binding(LAZY)
+    default Emitter emitter() { return new Emitter(); }
+
+    default Channels channels() {
+        return backend().channels();
+    }
+
+    default String className(int core) {
+        return "GeneratedFifos_core" + core;
+    }
+
+    default boolean hasFifos(int core) {
+        Mapping mapping = backend().mapping();
+        return channels().hardwareFifoConnections().stream()
+                .anyMatch(connection -> mapping.coreOf(connection.getSource()) == core || mapping.coreOf(connection.getTarget()) == core);
+    }
+
+    default void generateFifos() {
+        if (channels().hardwareFifoConnections().isEmpty()) {
+            return;
+        }
+        emitter().open(target().resolve("hardwareFifos.scala"));
+        emitter().emit("/* RoCC accelerators for the hardware fifos generated by StreamBlocks */");
+        emitter().emit("");
+        emitter().emit("package freechips.rocketchip.tile");
+        emitter().emit("");
+        emitter().emit("import chisel3._");
+        emitter().emit("import chisel3.util._");
+        emitter().emit("import chisel3.util.experimental.BoringUtils");
+        emitter().emit("import freechips.rocketchip.config._");
+        emitter().emit("import freechips.rocketchip.rocket._");
+        emitter().emit("");
+        for (int core = 0; core < backend().mapping().numberOfCores(); core++) {
+            if (hasFifos(core)) {
+                accelerator(core);
+            }
+        }
+        emitter().close();
+    }
+
+    default void accelerator(int core) {
+        Mapping mapping = backend().mapping();
+        List<Connection> fifos = channels().hardwareFifoConnections();
+
+        emitter().emit("class " + className(core) + "(implicit p: Parameters) extends LazyRoCC() (p){");
+        emitter().increaseIndentation();
+        emitter().emit("override lazy val module = new " + className(core) + "_module(this)");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("class " + className(core) + "_module(outer: " + className(core) + ")(implicit p: Parameters)");
+        emitter().emit("extends LazyRoCCModule(outer) with HasCoreParameters{");
+        emitter().increaseIndentation();
+        emitter().emit("");
+        emitter().emit("// Read the instruction fields");
+        emitter().emit("val cmd     = Queue(io.cmd)");
+        emitter().emit("val funct   = cmd.bits.inst.funct");
+        emitter().emit("val fifo    = cmd.bits.rs2(15, 0)");
+        emitter().emit("val offset  = cmd.bits.rs2(31, 16)");
+        emitter().emit("val command = cmd.fire()");
+        emitter().emit("val result  = WireInit(0.U(64.W))");
+        emitter().emit("");
+
+        for (Connection connection : fifos) {
+            int fifo = channels().hardwareFifoNumber(connection);
+            if (mapping.coreOf(connection.getTarget()) == core) {
+                receiver(fifo, channels().hardwareFifoDepth(connection), mapping.coreOf(connection.getSource()));
+            }
+            if (mapping.coreOf(connection.getSource()) == core) {
+                sender(fifo, mapping.coreOf(connection.getTarget()));
+            }
+        }
+
+        emitter().emit("// Functions respond with their result, commands do not respond");
+        emitter().emit("cmd.ready         := !cmd.bits.inst.xd || io.resp.ready");
+        emitter().emit("io.resp.valid     := cmd.valid && cmd.bits.inst.xd");
+        emitter().emit("io.resp.bits.rd   := cmd.bits.inst.rd");
+        emitter().emit("io.resp.bits.data := result");
+        emitter().emit("io.interrupt      := false.B");
+        emitter().emit("io.busy           := cmd.valid");
+        emitter().emit("io.mem.req.valid  := false.B");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    /*
+     * The queue is a ring of registers with a read and a write counter. Tokens are stored behind the write counter
+     * and become visible when they are published.
+     */
+    default void receiver(int fifo, int depth, int sender) {
+        String name = "fifo" + fifo;
+        String index = String.format("(%d, 0)", Integer.numberOfTrailingZeros(depth) - 1);
+
+        emitter().emit("// Fifo %d from core %d, a queue of %d tokens", fifo, sender, depth);
+        emitter().emit("val %s_buffer  = Reg(Vec(%d, UInt(64.W)))", name, depth);
+        emitter().emit("val %s_read    = RegInit(0.U(32.W))", name);
+        emitter().emit("val %s_write   = RegInit(0.U(32.W))", name);
+        emitter().emit("val %s_level   = %1$s_write - %1$s_read", name);
+        emitter().emit("val %s_space   = %d.U - %1$s_level", name, depth);
+        emitter().emit("val %s_store   = WireInit(false.B)", name);
+        emitter().emit("val %s_index   = WireInit(0.U(16.W))", name);
+        emitter().emit("val %s_data    = WireInit(0.U(64.W))", name);
+        emitter().emit("val %s_publish = WireInit(0.U(32.W))", name);
+        emitter().emit("BoringUtils.addSink(%s_store, \"%1$s_store\")", name);
+        emitter().emit("BoringUtils.addSink(%s_index, \"%1$s_index\")", name);
+        emitter().emit("BoringUtils.addSink(%s_data, \"%1$s_data\")", name);
+        emitter().emit("BoringUtils.addSink(%s_publish, \"%1$s_publish\")", name);
+        emitter().emit("BoringUtils.addSource(%s_space, \"%1$s_space\")", name);
+        emitter().emit("when (%s_store) { %1$s_buffer((%1$s_write + %1$s_index)%s) := %1$s_data }", name, index);
+        emitter().emit("%s_write := %1$s_write + %1$s_publish", name);
+        emitter().emit("when (command && fifo === %d.U && funct === %d.U) { %s_read := %3$s_read + cmd.bits.rs1(31, 0) }", fifo, Channels.FIFO_CONSUME, name);
+        emitter().emit("when (fifo === %d.U && funct === %d.U) { result := %s_level }", fifo, Channels.FIFO_LEVEL, name);
+        emitter().emit("when (fifo === %d.U && funct === %d.U) { result := %s_buffer((%3$s_read + offset)%s) }", fifo, Channels.FIFO_PEEK, name, index);
+        emitter().emit("");
+    }
+
+    default void sender(int fifo, int receiver) {
+        String name = "fifo" + fifo;
+
+        emitter().emit("// Fifo %d to core %d", fifo, receiver);
+        emitter().emit("val %s_store   = command && fifo === %d.U && funct === %d.U", name, fifo, Channels.FIFO_WRITE);
+        emitter().emit("val %s_publish = Mux(command && fifo === %d.U && funct === %d.U, cmd.bits.rs1(31, 0), 0.U(32.W))", name, fifo, Channels.FIFO_PUBLISH);
+        emitter().emit("val %s_space   = WireInit(0.U(32.W))", name);
+        emitter().emit("BoringUtils.addSource(%s_store, \"%1$s_store\")", name);
+        emitter().emit("BoringUtils.addSource(offset, \"%s_index\")", name);
+        emitter().emit("BoringUtils.addSource(cmd.bits.rs1, \"%s_data\")", name);
+        emitter().emit("BoringUtils.addSource(%s_publish, \"%1$s_publish\")", name);
+        emitter().emit("BoringUtils.addSink(%s_space, \"%1$s_space\")", name);
+        emitter().emit("when (fifo === %d.U && funct === %d.U) { result := %s_space }", fifo, Channels.FIFO_SPACE, name);
+        emitter().emit("");
+    }
+}
@@ -2,7 +2,13 @@ package se.lth.cs.tycho.phase;
 
 import org.multij.MultiJ;
 import se.lth.cs.tycho.backend.c.Backend;
+import se.lth.cs.tycho.backend.c.Channels;
 import se.lth.cs.tycho.backend.c.Controllers;
+import se.lth.cs.tycho.backend.c.Main;
+import se.lth.cs.tycho.backend.c.MainNetwork;
+import se.lth.cs.tycho.backend.c.Mapping;
+import se.lth.cs.tycho.backend.c.Memory;
+import se.lth.cs.tycho.backend.c.Sdf;
 import se.lth.cs.tycho.compiler.CompilationTask;
 import se.lth.cs.tycho.compiler.Compiler;
 import se.lth.cs.tycho.compiler.Context;
@@ -23,7 +29,30 @@ public class RocketBackendPhase implements Phase {
 
 	@Override
 	public List<Setting<?>> getPhaseSettings() {
-		return ImmutableList.of(Controllers.scopeLivenessAnalysis);
+		return ImmutableList.of(
+				Controllers.scopeLivenessAnalysis,
+				Controllers.firingBudget,
+				Controllers.tokenQuota,
+				Controllers.cycleAccounting,
+				Controllers.accountingEvent,
+				Mapping.coreCount,
+				Mapping.placementProfile,
+				Mapping.ioCore,
+				Channels.ioBatchTokens,
+				Channels.outputBatchTokens,
+				Channels.memoryIo,
+				Channels.ioRegionTokens,
+				Channels.pow2Buffers,
+				Channels.autoBufferSizing,
+				Channels.bufferFirings,
+				Channels.broadcastChannels,
+				Channels.channelStatistics,
+				Channels.hardwareFifos,
+				Memory.scratchpadBytes,
+				MainNetwork.readinessScheduling,
+				Sdf.sdfStaticSchedule,
+				Main.wfiWait,
+				Main.idleSpins);
 	}
 
 	@Override
@@ -0,0 +1,41 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChannelCapacityTest {
+
+	@Test
+	public void minimal() {
+		assertEquals(1, ChannelCapacity.minimal(1, 1));
+		assertEquals(4, ChannelCapacity.minimal(2, 3));
+		assertEquals(64, ChannelCapacity.minimal(64, 1));
+		assertEquals(8, ChannelCapacity.minimal(4, 6));
+	}
+
+	@Test
+	public void capacity() {
+		assertEquals(2, ChannelCapacity.capacity(1, 1, 2));
+		assertEquals(128, ChannelCapacity.capacity(64, 1, 2));
+		assertEquals(4, ChannelCapacity.capacity(2, 3, 1));
+	}
+
+	@Test
+	public void varyingRates() {
+		assertEquals(2, ChannelCapacity.minimal(1, 1, false));
+		assertEquals(10, ChannelCapacity.minimal(4, 6, false));
+		assertEquals(10, ChannelCapacity.capacity(4, 6, 1, false));
+		assertEquals(12, ChannelCapacity.capacity(4, 6, 2, false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroWindow() {
+		ChannelCapacity.minimal(0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroFirings() {
+		ChannelCapacity.capacity(1, 1, 0);
+	}
+}
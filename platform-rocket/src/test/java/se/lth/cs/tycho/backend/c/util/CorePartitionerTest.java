@@ -0,0 +1,60 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CorePartitionerTest {
+
+	@Test
+	public void balance() {
+		CorePartitioner partitioner = new CorePartitioner(4, 2);
+		partitioner.setWork(0, 10);
+		partitioner.setWork(1, 10);
+		partitioner.setWork(2, 10);
+		partitioner.setWork(3, 10);
+		int[] assignment = partitioner.partition();
+		assertEquals(20, partitioner.cost(assignment));
+	}
+
+	@Test
+	public void heavyTrafficStaysOnOneCore() {
+		CorePartitioner partitioner = new CorePartitioner(3, 2);
+		partitioner.setWork(0, 10);
+		partitioner.setWork(1, 10);
+		partitioner.setWork(2, 10);
+		partitioner.addTraffic(0, 1, 100);
+		int[] assignment = partitioner.partition();
+		assertEquals(assignment[0], assignment[1]);
+		assertNotEquals(assignment[0], assignment[2]);
+	}
+
+	@Test
+	public void pinned() {
+		CorePartitioner partitioner = new CorePartitioner(2, 2);
+		partitioner.setWork(0, 10);
+		partitioner.setWork(1, 10);
+		partitioner.addTraffic(0, 1, 100);
+		partitioner.pin(0, 0);
+		partitioner.pin(1, 1);
+		int[] assignment = partitioner.partition();
+		assertEquals(0, assignment[0]);
+		assertEquals(1, assignment[1]);
+	}
+
+	@Test
+	public void singleCore() {
+		CorePartitioner partitioner = new CorePartitioner(3, 1);
+		assertArrayEquals(new int[] { 0, 0, 0 }, partitioner.partition());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void pinToMissingCore() {
+		new CorePartitioner(1, 1).pin(0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noCores() {
+		new CorePartitioner(1, 0);
+	}
+}
@@ -0,0 +1,83 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import static org.junit.Assert.*;
+
+public class PlacementProfileTest {
+
+	@Test
+	public void instanceValues() {
+		PlacementProfile profile = PlacementProfile.parse(Arrays.asList(
+				"# comment",
+				"",
+				"instance source firings 10 cycles 1200"));
+		assertEquals(OptionalLong.of(10), profile.instanceValue("source", "firings"));
+		assertEquals(OptionalLong.of(1200), profile.instanceValue("source", "cycles"));
+		assertFalse(profile.instanceValue("source", "core").isPresent());
+		assertFalse(profile.instanceValue("sink", "cycles").isPresent());
+	}
+
+	@Test
+	public void connectionValues() {
+		PlacementProfile profile = PlacementProfile.parse(Collections.singletonList(
+				"connection a.out b.in tokens 64"));
+		assertEquals(OptionalLong.of(64), profile.connectionValue("a.out", "b.in", "tokens"));
+		assertFalse(profile.connectionValue("b.in", "a.out", "tokens").isPresent());
+	}
+
+	@Test
+	public void valuesAreSummed() {
+		PlacementProfile profile = PlacementProfile.parse(Arrays.asList(
+				"instance a cycles 10",
+				"instance a cycles 5"));
+		assertEquals(OptionalLong.of(15), profile.instanceValue("a", "cycles"));
+		assertEquals(OptionalLong.of(8), profile.instanceValue("a", "work"));
+	}
+
+	@Test
+	public void placementKeysAreNotSummed() {
+		PlacementProfile profile = PlacementProfile.parse(Arrays.asList(
+				"network core-count 4 channel-cost 20",
+				"network core-count 4",
+				"instance a core 2 cycles 10 work 7",
+				"instance a core 3 cycles 5 work 8"));
+		assertEquals(OptionalLong.of(4), profile.networkValue("core-count"));
+		assertEquals(OptionalLong.of(20), profile.networkValue("channel-cost"));
+		assertEquals(OptionalLong.of(3), profile.instanceValue("a", "core"));
+		assertEquals(OptionalLong.of(15), profile.instanceValue("a", "cycles"));
+	}
+
+	@Test
+	public void records() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		values.put("core", 1L);
+		values.put("work", 20L);
+		assertEquals("instance a core 1 work 20", PlacementProfile.instanceRecord("a", values));
+		assertEquals("connection a.out b.in core 1 work 20", PlacementProfile.connectionRecord("a.out", "b.in", values));
+		assertEquals("network core 1 work 20", PlacementProfile.networkRecord(values));
+		PlacementProfile profile = PlacementProfile.parse(Collections.singletonList(PlacementProfile.instanceRecord("a", values)));
+		assertEquals(OptionalLong.of(1), profile.instanceValue("a", "core"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownRecord() {
+		PlacementProfile.parse(Collections.singletonList("actor a cycles 10"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingValue() {
+		PlacementProfile.parse(Collections.singletonList("instance a cycles"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notAnInteger() {
+		PlacementProfile.parse(Collections.singletonList("instance a cycles many"));
+	}
+}
@@ -0,0 +1,68 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScratchpadPlanTest {
+
+	@Test
+	public void everythingFits() {
+		ScratchpadPlan plan = new ScratchpadPlan(1024);
+		plan.add(0, "a", 512, true);
+		plan.add(0, "b", 512, false);
+		plan.add(1, "c", 1024, true);
+		assertFalse(plan.isSpilled("a"));
+		assertFalse(plan.isSpilled("c"));
+		assertEquals(1024, plan.used(0));
+		assertTrue(plan.fits(0));
+		assertEquals(Arrays.asList("a", "b"), plan.objects(0));
+	}
+
+	@Test
+	public void largestSpillableObjectsAreSpilled() {
+		ScratchpadPlan plan = new ScratchpadPlan(1000);
+		plan.add(0, "state", 600, false);
+		plan.add(0, "small", 100, true);
+		plan.add(0, "large", 500, true);
+		plan.add(0, "medium", 300, true);
+		assertTrue(plan.isSpilled("large"));
+		assertFalse(plan.isSpilled("medium"));
+		assertFalse(plan.isSpilled("small"));
+		assertEquals(1000, plan.used(0));
+		assertTrue(plan.fits(0));
+	}
+
+	@Test
+	public void coresAreIndependent() {
+		ScratchpadPlan plan = new ScratchpadPlan(100);
+		plan.add(0, "a", 150, true);
+		plan.add(1, "b", 50, true);
+		assertTrue(plan.isSpilled("a"));
+		assertFalse(plan.isSpilled("b"));
+	}
+
+	@Test
+	public void unspillableObjectsMayNotFit() {
+		ScratchpadPlan plan = new ScratchpadPlan(100);
+		plan.add(0, "state", 200, false);
+		plan.add(0, "buffer", 50, true);
+		assertTrue(plan.isSpilled("buffer"));
+		assertFalse(plan.fits(0));
+		assertEquals(200, plan.used(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void duplicateName() {
+		ScratchpadPlan plan = new ScratchpadPlan(100);
+		plan.add(0, "a", 1, true);
+		plan.add(1, "a", 1, true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownObject() {
+		new ScratchpadPlan(100).isSpilled("a");
+	}
+}
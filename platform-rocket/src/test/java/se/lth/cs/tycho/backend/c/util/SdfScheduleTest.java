@@ -0,0 +1,61 @@
+package se.lth.cs.tycho.backend.c.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SdfScheduleTest {
+
+	@Test
+	public void chain() {
+		SdfSchedule schedule = new SdfSchedule(3);
+		int ab = schedule.addEdge(0, 1, 2, 3);
+		int bc = schedule.addEdge(1, 2, 1, 2);
+		assertTrue(schedule.solve());
+		assertArrayEquals(new long[] { 3, 2, 1 }, schedule.repetitions());
+		assertEquals(4, schedule.bufferBound(ab));
+		assertEquals(2, schedule.bufferBound(bc));
+		assertEquals(6, schedule.firings().length);
+	}
+
+	@Test
+	public void scheduleIsAdmissible() {
+		SdfSchedule schedule = new SdfSchedule(2);
+		schedule.addEdge(0, 1, 1, 4);
+		assertTrue(schedule.solve());
+		assertArrayEquals(new int[] { 0, 0, 0, 0, 1 }, schedule.firings());
+	}
+
+	@Test
+	public void forkAndJoin() {
+		SdfSchedule schedule = new SdfSchedule(4);
+		schedule.addEdge(0, 1, 1, 1);
+		schedule.addEdge(0, 2, 2, 1);
+		schedule.addEdge(1, 3, 2, 1);
+		schedule.addEdge(2, 3, 1, 1);
+		assertTrue(schedule.solve());
+		assertArrayEquals(new long[] { 1, 1, 2, 2 }, schedule.repetitions());
+	}
+
+	@Test
+	public void inconsistent() {
+		SdfSchedule schedule = new SdfSchedule(3);
+		schedule.addEdge(0, 1, 1, 1);
+		schedule.addEdge(0, 2, 1, 1);
+		schedule.addEdge(1, 2, 2, 1);
+		assertFalse(schedule.solve());
+	}
+
+	@Test
+	public void cycleWithoutTokensDeadlocks() {
+		SdfSchedule schedule = new SdfSchedule(2);
+		schedule.addEdge(0, 1, 1, 1);
+		schedule.addEdge(1, 0, 1, 1);
+		assertFalse(schedule.solve());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroRate() {
+		new SdfSchedule(2).addEdge(0, 1, 0, 1);
+	}
+}